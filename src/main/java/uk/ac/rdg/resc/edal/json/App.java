@@ -1,7 +1,12 @@
 package uk.ac.rdg.resc.edal.json;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.restlet.Application;
 import org.restlet.Component;
@@ -11,31 +16,37 @@ import org.restlet.Response;
 import org.restlet.Restlet;
 import org.restlet.data.CacheDirective;
 import org.restlet.data.ClientInfo;
+import org.restlet.data.Encoding;
 import org.restlet.data.Header;
 import org.restlet.data.MediaType;
+import org.restlet.data.Method;
 import org.restlet.data.Parameter;
 import org.restlet.data.Preference;
 import org.restlet.data.Protocol;
+import org.restlet.data.Reference;
 import org.restlet.data.Status;
+import org.restlet.data.Tag;
 import org.restlet.ext.jackson.JacksonRepresentation;
+import org.restlet.representation.EmptyRepresentation;
 import org.restlet.representation.Representation;
 import org.restlet.resource.Resource;
 import org.restlet.resource.ServerResource;
 import org.restlet.routing.Filter;
 import org.restlet.routing.Router;
 import org.restlet.util.Series;
+import org.restlet.util.WrapperRepresentation;
 
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.io.CountingOutputStream;
 
 public class App extends Application {
 	
 	static final int MAX_AGE = 3600; // cache control header for all responses (1h caching)
 	
-	// there are still some memory problems both server and client side with big coverages (like OSTIA)
-	// so we disable it for now
-	static final boolean ENABLE_COVCBOR = false;
+	// range values are streamed as typed arrays by CBORWriter, so big coverages (like OSTIA) are fine now
+	static final boolean ENABLE_COVCBOR = true;
 	
     static MediaType JSONLD = new MediaType("application/ld+json");
     static MediaType CovJSON = new MediaType("application/prs.coverage+json");
@@ -45,8 +56,14 @@ public class App extends Application {
     }
     static MediaType CovJSONS = new MediaType("application/prs.coverage+json", CovJSONParams);
     static MediaType CovJSONMsgpack = new MediaType("application/prs.coverage+msgpack");
+    static Series<Parameter> CovJSONMsgpackTypedParams = new Series<Parameter>(Parameter.class);
+    static {
+    	CovJSONMsgpackTypedParams.add("encoding", "typedarray");
+    }
+    static MediaType CovJSONMsgpackTyped = new MediaType("application/prs.coverage+msgpack", CovJSONMsgpackTypedParams);
     static MediaType CovJSONCBOR = new MediaType("application/prs.coverage+cbor");
     static MediaType GeoJSON = new MediaType("application/vnd.geo+json");
+    static MediaType MVT = new MediaType("application/vnd.mapbox-vector-tile");
 	
 	public static void main(String[] args) throws Exception {
 		Component component = new RestletComponent();
@@ -74,19 +91,35 @@ public class App extends Application {
         getMetadataService().addExtension("geojson", GeoJSON);
         getMetadataService().addExtension("covcbor", CovJSONCBOR);
         getMetadataService().addExtension("covmsgpack", CovJSONMsgpack);
+        getMetadataService().addExtension("covmsgpacktyped", CovJSONMsgpackTyped);
         getMetadataService().addExtension("cbor", CovJSONCBOR);
         getMetadataService().addExtension("html", MediaType.TEXT_HTML);
         getMetadataService().addExtension("json", MediaType.APPLICATION_JSON);
+        getMetadataService().addExtension("mvt", MVT);
+        getMetadataService().addExtension("png", MediaType.IMAGE_PNG);
+        getMetadataService().addExtension("txt", MediaType.TEXT_PLAIN);
+		
+		if (DatasetResource.WARM_UP_THREADS > 0) {
+			try {
+				DatasetResource.warmUpMetadataCache(DatasetResource.WARM_UP_THREADS);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
 		
 		Router router = new Router(getContext());
 		router.attach("/datasets/{datasetId}/coverages/{coverageId}/range/{parameterId}",
 				withFilters(CoverageRangeResource.class));
+		router.attach("/datasets/{datasetId}/coverages/{coverageId}/tiles/{paramId}/{z}/{x}/{y}",
+				withFilters(CoverageTilesResource.class));
 		router.attach("/datasets/{datasetId}/coverages/{coverageId}/domain",
 				withFilters(CoverageDomainResource.class));
 		router.attach("/datasets/{datasetId}/coverages/{coverageId}/outlines",
 				withFilters(CoverageOutlinesResource.class));
 		router.attach("/datasets/{datasetId}/coverages/{coverageId}",
 				withFilters(CoverageResource.class));
+		router.attach("/datasets/{datasetId}/outlines/tiles/{z}/{x}/{y}",
+				withFilters(OutlineTilesResource.class));
 		router.attach("/datasets/{datasetId}/outlines",
 				withFilters(CoverageCollectionResource.class));
 		router.attach("/datasets/{datasetId}/coverages",
@@ -95,27 +128,238 @@ public class App extends Application {
 				withFilters(ParameterResource.class));
 		router.attach("/datasets/{datasetId}", withFilters(DatasetResource.class));
 		router.attach("/datasets", withFilters(DatasetsResource.class));
+		// not filtered, metrics must never be cached
+		router.attach("/metrics", MetricsResource.class);
 		return router;
 	}
 	
 	Restlet withFilters(Class<? extends ServerResource> clazz) {
-		Filter filter = new CacheFilter(getContext());
+		Filter filter = new CacheFilter(getContext(), clazz.getSimpleName().replace("Resource", ""));
 		filter.setNext(clazz);
 		return filter;
 	}
 	
 	class CacheFilter extends Filter {
-		public CacheFilter(Context context) {
+		private static final String TAG_ATTRIBUTE = "edal.json.tag";
+		private static final String LEADER_ATTRIBUTE = "edal.json.leader";
+		private static final String TRACE_ATTRIBUTE = "edal.json.trace";
+		private static final String DATASETS_ATTRIBUTE = "edal.json.datasets";
+		
+		private final String route;
+		
+		/**
+		 * @param route name of the route in metrics
+		 */
+		public CacheFilter(Context context, String route) {
 			super(context);
+			this.route = route;
+		}
+		
+		@Override
+		protected int beforeHandle(Request request, Response response) {
+			Object datasetId = request.getAttributes().get("datasetId");
+			Metrics.Trace trace = Metrics.startTrace(route, datasetId == null ? null : Reference.decode(datasetId.toString()));
+			request.getAttributes().put(TRACE_ATTRIBUTE, trace);
+			retainDatasets(request);
+			int result = answerEarly(request, response);
+			if (result == STOP) {
+				// afterHandle is skipped
+				finishTrace(request, response);
+			}
+			return result;
+		}
+		
+		/**
+		 * Keeps the datasets of the request open until its response is written, see {@link Utils#retainDataset(String)}.
+		 */
+		private void retainDatasets(Request request) {
+			Object datasetId = request.getAttributes().get("datasetId");
+			List<String> datasetIds;
+			if (datasetId != null) {
+				datasetIds = Collections.singletonList(Reference.decode(datasetId.toString()));
+			} else {
+				try {
+					datasetIds = Utils.getDatasetIds();
+				} catch (IOException e) {
+					// answered with an error by the resource
+					datasetIds = Collections.emptyList();
+				}
+			}
+			datasetIds.forEach(Utils::retainDataset);
+			request.getAttributes().put(DATASETS_ATTRIBUTE, datasetIds);
+		}
+		
+		@SuppressWarnings("unchecked")
+		private void releaseDatasets(Request request) {
+			List<String> datasetIds = (List<String>) request.getAttributes().remove(DATASETS_ATTRIBUTE);
+			if (datasetIds != null) {
+				datasetIds.forEach(Utils::releaseDataset);
+			}
+		}
+		
+		/**
+		 * Answers conditional GET requests with 304 if the entity tag matches,
+		 * and other requests from the response cache or from an identical request
+		 * in flight if possible, before the resource reads anything.
+		 */
+		private int answerEarly(Request request, Response response) {
+			if (!Method.GET.equals(request.getMethod()) && !Method.HEAD.equals(request.getMethod())) {
+				return CONTINUE;
+			}
+			Tag tag = EntityTags.compute(request);
+			if (tag == null) {
+				return CONTINUE;
+			}
+			request.getAttributes().put(TAG_ATTRIBUTE, tag);
+			for (Tag noneMatch : request.getConditions().getNoneMatch()) {
+				// * only matches if the resource exists, which is known after handling it, see afterHandle
+				if (!Tag.ALL.equals(noneMatch) && ResponseCache.matches(tag, noneMatch)) {
+					// the matched tag, as the client may have the compressed variant
+					setNotModified(response, new Tag(noneMatch.getName(), false));
+					return STOP;
+				}
+			}
+			boolean noneMatchAll = request.getConditions().getNoneMatch().contains(Tag.ALL);
+			if (ResponseCache.isEnabled() && ResponseCache.restore(tag, response)) {
+				if (noneMatchAll) {
+					// a cached response means that the resource exists
+					setNotModified(response, tag);
+					return STOP;
+				}
+				response.setStatus(Status.SUCCESS_OK);
+				response.setCacheDirectives(ImmutableList.of(CacheDirective.maxAge(MAX_AGE)));
+				return STOP;
+			}
+			// the 304 of such a request cannot be handed to identical requests without the condition
+			if (RequestCoalescer.isEnabled() && Method.GET.equals(request.getMethod()) && !noneMatchAll) {
+				CompletableFuture<ResponseCache.Entry> leader = RequestCoalescer.join(tag);
+				if (leader == null) {
+					request.getAttributes().put(LEADER_ATTRIBUTE, true);
+				} else {
+					ResponseCache.Entry entry = RequestCoalescer.await(leader);
+					if (entry != null) {
+						Metrics.countCoalesced(route);
+						ResponseCache.restore(tag, entry, response);
+						response.setStatus(Status.SUCCESS_OK);
+						response.setCacheDirectives(ImmutableList.of(CacheDirective.maxAge(MAX_AGE)));
+						return STOP;
+					}
+				}
+			}
+			return CONTINUE;
 		}
+		
+		@Override
+		protected int doHandle(Request request, Response response) {
+			try {
+				return super.doHandle(request, response);
+			} catch (RuntimeException | Error e) {
+				// afterHandle is skipped, followers must not wait for the timeout
+				completeLeader(request, null);
+				Metrics.endTrace();
+				Metrics.Trace trace = (Metrics.Trace) request.getAttributes().remove(TRACE_ATTRIBUTE);
+				trace.record("", Status.SERVER_ERROR_INTERNAL.getCode(), -1);
+				releaseDatasets(request);
+				throw e;
+			}
+		}
+		
 		@Override
 		protected void afterHandle(Request request, Response response) {
 			super.afterHandle(request, response);
+			boolean captured = false;
 			if (response!= null && response.getEntity() != null) {
 				if (response.getStatus().equals(Status.SUCCESS_OK)){
 					response.setCacheDirectives(ImmutableList.of(CacheDirective.maxAge(MAX_AGE)));
+					Tag tag = (Tag) request.getAttributes().get(TAG_ATTRIBUTE);
+					if (tag != null && request.getConditions().getNoneMatch().contains(Tag.ALL)) {
+						response.getEntity().release();
+						setNotModified(response, tag);
+					} else if (tag != null) {
+						response.getEntity().setTag(tag);
+						if (ResponseCache.isEnabled() || isLeader(request)) {
+							ResponseCache.capture(tag, response, acceptsGzip(request.getClientInfo()),
+									entry -> completeLeader(request, entry));
+							captured = true;
+						}
+					}
 				}
 			}
+			if (!captured) {
+				completeLeader(request, null);
+			}
+			finishTrace(request, response);
+		}
+		
+		/**
+		 * Stops tracing the request on this thread and records the trace once the entity is written,
+		 * measuring the serialization and the number of bytes. The datasets of the request
+		 * are released at the same time, as entities may read values lazily while being written.
+		 */
+		private void finishTrace(Request request, Response response) {
+			Metrics.endTrace();
+			Metrics.Trace trace = (Metrics.Trace) request.getAttributes().remove(TRACE_ATTRIBUTE);
+			if (trace == null) {
+				releaseDatasets(request);
+				return;
+			}
+			int status = response.getStatus().getCode();
+			Representation entity = response.getEntity();
+			if (entity == null || !entity.isAvailable()) {
+				trace.record("", status, -1);
+				releaseDatasets(request);
+				return;
+			}
+			String format = entity.getMediaType() == null ? "" : entity.getMediaType().getName();
+			AtomicBoolean recorded = new AtomicBoolean();
+			response.setEntity(new WrapperRepresentation(entity) {
+				@Override
+				public void write(OutputStream out) throws IOException {
+					long t0 = System.nanoTime();
+					CountingOutputStream counting = new CountingOutputStream(out);
+					try {
+						entity.write(counting);
+					} finally {
+						if (recorded.compareAndSet(false, true)) {
+							trace.add(Metrics.Phase.SERIALIZE, System.nanoTime() - t0);
+							trace.record(format, status, counting.getCount());
+							releaseDatasets(request);
+						}
+					}
+				}
+				
+				@Override
+				public void release() {
+					entity.release();
+					// not written, e.g. for HEAD requests
+					if (recorded.compareAndSet(false, true)) {
+						trace.record(format, status, -1);
+						releaseDatasets(request);
+					}
+				}
+			});
+		}
+		
+		private void setNotModified(Response response, Tag tag) {
+			Representation empty = new EmptyRepresentation();
+			empty.setTag(tag);
+			response.setEntity(empty);
+			response.setStatus(Status.REDIRECTION_NOT_MODIFIED);
+			response.setCacheDirectives(ImmutableList.of(CacheDirective.maxAge(MAX_AGE)));
+		}
+		
+		private boolean isLeader(Request request) {
+			return request.getAttributes().containsKey(LEADER_ATTRIBUTE);
+		}
+		
+		/**
+		 * Hands the response of a coalesced request to the identical requests waiting for it.
+		 */
+		private void completeLeader(Request request, ResponseCache.Entry entry) {
+			if (isLeader(request)) {
+				request.getAttributes().remove(LEADER_ATTRIBUTE);
+				RequestCoalescer.complete((Tag) request.getAttributes().get(TAG_ATTRIBUTE), entry);
+			}
 		}
 	}
 	
@@ -143,12 +387,31 @@ public class App extends Application {
 		return false;
 	}
 	
+	/**
+	 * Whether the client accepts gzip-compressed responses.
+	 */
+	public static boolean acceptsGzip(Resource resource) {
+		return acceptsGzip(resource.getClientInfo());
+	}
+	
+	static boolean acceptsGzip(ClientInfo info) {
+		for (Preference<Encoding> pref : info.getAcceptedEncodings()) {
+			if (pref.getQuality() > 0 && (Encoding.GZIP.equals(pref.getMetadata()) || Encoding.ALL.equals(pref.getMetadata()))) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
 	public static Representation getCovJsonRepresentation(Resource resource, Map<String,?> json) {
 		MediaType type = resource.getClientInfo().getAcceptedMediaTypes().get(0).getMetadata();
 		
 		Representation r;
 		
-		if (type.equals(App.CovJSONMsgpack)) {
+		if (type.equals(App.CovJSONMsgpackTyped)) {
+			r = new MessagePackRepresentation(json, true);
+			r.setMediaType(App.CovJSONMsgpackTyped);
+		} else if (type.equals(App.CovJSONMsgpack)) {
 			r = new MessagePackRepresentation(json);
 			r.setMediaType(App.CovJSONMsgpack);
 		} else if (type.equals(App.CovJSONCBOR) && ENABLE_COVCBOR) {
@@ -156,7 +419,7 @@ public class App extends Application {
 			r.setMediaType(App.CovJSONCBOR);
 			return r;
 		} else /*if (type.equals(App.CovJSON))*/ {
-			r = new JacksonRepresentationWithTimer<>(json);
+			r = new JacksonRepresentation<>(json);
 			r.setMediaType(App.CovJSON);
 			if (!App.acceptsJSON(resource)) {
 				JacksonRepresentation<Map<String,?>> jack = (JacksonRepresentation<Map<String, ?>>) r;
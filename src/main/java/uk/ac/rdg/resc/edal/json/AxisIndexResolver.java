@@ -0,0 +1,199 @@
+package uk.ac.rdg.resc.edal.json;
+
+import uk.ac.rdg.resc.edal.domain.Extent;
+import uk.ac.rdg.resc.edal.grid.ReferenceableAxis;
+import uk.ac.rdg.resc.edal.grid.RegularAxis;
+
+/**
+ * Finds the range of axis indices whose cell bounds intersect a given extent.
+ *
+ * Axes are monotonic, therefore the matching cells are always contiguous and
+ * their first and last index can be found with a binary search over the cell bounds
+ * instead of testing every cell. For regular axes the indices are computed directly
+ * and only verified against the neighbouring cell bounds.
+ *
+ * A null low or high of the extent means unbounded on that side,
+ * and cell bounds touching the extent count as intersecting.
+ *
+ */
+final class AxisIndexResolver {
+
+	private AxisIndexResolver() {
+	}
+
+	@SuppressWarnings("unchecked")
+	static <T extends Comparable<? super T>> IndexRange resolve(ReferenceableAxis<T> ax, Extent<T> extent) {
+		int n = ax.size();
+		if (n == 0) {
+			return IndexRange.EMPTY;
+		}
+		T low = extent.getLow();
+		T high = extent.getHigh();
+		if (low == null && high == null) {
+			return IndexRange.of(0, n-1);
+		}
+
+		boolean ascending = n == 1 || ax.getCoordinateValue(0).compareTo(ax.getCoordinateValue(n-1)) <= 0;
+		Cells<T> cells = new Cells<>(ax, low, high, ascending);
+
+		int first;
+		int last;
+		if (ax instanceof RegularAxis) {
+			first = cells.adjustFirst(estimateFirst((RegularAxis) ax, (Extent<Double>) extent, ascending));
+			last = cells.adjustLast(estimateLast((RegularAxis) ax, (Extent<Double>) extent, ascending));
+		} else {
+			first = cells.searchFirst();
+			last = cells.searchLast();
+		}
+		if (first > last) {
+			return IndexRange.EMPTY;
+		}
+		// translate from ascending order back to axis indices
+		return ascending ? IndexRange.of(first, last) : IndexRange.of(n-1 - last, n-1 - first);
+	}
+
+	/*
+	 * Estimates for regular axes, in ascending order. With the smallest coordinate as start,
+	 * cell i has the bounds [start + (i-0.5)*spacing, start + (i+0.5)*spacing].
+	 */
+
+	private static int estimateFirst(RegularAxis ax, Extent<Double> extent, boolean ascending) {
+		if (extent.getLow() == null) {
+			return 0;
+		}
+		return clamp(Math.ceil(toAscendingPosition(ax, extent.getLow(), ascending) - 0.5), ax.size());
+	}
+
+	private static int estimateLast(RegularAxis ax, Extent<Double> extent, boolean ascending) {
+		if (extent.getHigh() == null) {
+			return ax.size() - 1;
+		}
+		return clamp(Math.floor(toAscendingPosition(ax, extent.getHigh(), ascending) + 0.5), ax.size());
+	}
+
+	private static double toAscendingPosition(RegularAxis ax, double val, boolean ascending) {
+		double start = ax.getCoordinateValue(ascending ? 0 : ax.size() - 1);
+		double spacing = Math.abs(ax.getCoordinateSpacing());
+		return (val - start) / spacing;
+	}
+
+	private static int clamp(double i, int size) {
+		return (int) Math.max(-1, Math.min(size, i));
+	}
+
+	/**
+	 * View of the axis cells in ascending coordinate order.
+	 *
+	 * Cells entirely below the extent form a prefix, cells entirely above
+	 * the extent form a suffix, and everything in between intersects.
+	 */
+	private static class Cells<T extends Comparable<? super T>> {
+		private final ReferenceableAxis<T> ax;
+		private final T low, high;
+		private final boolean ascending;
+		private final int n;
+
+		Cells(ReferenceableAxis<T> ax, T low, T high, boolean ascending) {
+			this.ax = ax;
+			this.low = low;
+			this.high = high;
+			this.ascending = ascending;
+			this.n = ax.size();
+		}
+
+		private Extent<T> bounds(int i) {
+			return ax.getCoordinateBounds(ascending ? i : n-1 - i);
+		}
+
+		/**
+		 * @return true if the cell lies entirely below the extent
+		 */
+		boolean isBelow(int i) {
+			if (low == null) {
+				return false;
+			}
+			Extent<T> b = bounds(i);
+			return max(b.getLow(), b.getHigh()).compareTo(low) < 0;
+		}
+
+		/**
+		 * @return true if the cell lies entirely above the extent
+		 */
+		boolean isAbove(int i) {
+			if (high == null) {
+				return false;
+			}
+			Extent<T> b = bounds(i);
+			return min(b.getLow(), b.getHigh()).compareTo(high) > 0;
+		}
+
+		/**
+		 * @return the first cell which is not below the extent, or n if there is none
+		 */
+		int searchFirst() {
+			int lo = 0, hi = n;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (isBelow(mid)) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+		/**
+		 * @return the last cell which is not above the extent, or -1 if there is none
+		 */
+		int searchLast() {
+			int lo = -1, hi = n-1;
+			while (lo < hi) {
+				int mid = (lo + hi + 1) >>> 1;
+				if (isAbove(mid)) {
+					hi = mid - 1;
+				} else {
+					lo = mid;
+				}
+			}
+			return lo;
+		}
+
+		/**
+		 * Corrects an estimate of {@link #searchFirst()} by walking to the exact cell.
+		 * The estimate is usually exact or off by one due to rounding.
+		 */
+		int adjustFirst(int i) {
+			i = Math.max(0, Math.min(n, i));
+			while (i > 0 && !isBelow(i-1)) {
+				i--;
+			}
+			while (i < n && isBelow(i)) {
+				i++;
+			}
+			return i;
+		}
+
+		/**
+		 * Corrects an estimate of {@link #searchLast()} by walking to the exact cell.
+		 */
+		int adjustLast(int i) {
+			i = Math.max(-1, Math.min(n-1, i));
+			while (i < n-1 && !isAbove(i+1)) {
+				i++;
+			}
+			while (i >= 0 && isAbove(i)) {
+				i--;
+			}
+			return i;
+		}
+
+		private T min(T a, T b) {
+			return a.compareTo(b) <= 0 ? a : b;
+		}
+
+		private T max(T a, T b) {
+			return a.compareTo(b) >= 0 ? a : b;
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package uk.ac.rdg.resc.edal.json;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Encodes a tree of maps, lists, arrays, strings and numbers as CBOR
+ * directly to an output stream, without building an intermediate DataItem tree.
+ *
+ * Primitive arrays are written as tagged typed arrays, see {@link TypedArray}.
+ * Non-categorical range values are streamed chunk by chunk as a little endian
+ * float32 typed array with NaN for missing values. Categorical range values
+ * are written as a plain CBOR array of integers and nulls.
+ *
+ */
+class CBORWriter {
+
+	private static final int MAJOR_TYPE_UNSIGNED_INTEGER = 0;
+	private static final int MAJOR_TYPE_NEGATIVE_INTEGER = 1;
+	private static final int MAJOR_TYPE_BYTE_STRING = 2;
+	private static final int MAJOR_TYPE_UNICODE_STRING = 3;
+	private static final int MAJOR_TYPE_ARRAY = 4;
+	private static final int MAJOR_TYPE_MAP = 5;
+	private static final int MAJOR_TYPE_TAG = 6;
+
+	private static final int FALSE = 0xf4;
+	private static final int TRUE = 0xf5;
+	private static final int NULL = 0xf6;
+	private static final int SINGLE_PRECISION_FLOAT = 0xfa;
+	private static final int DOUBLE_PRECISION_FLOAT = 0xfb;
+
+	// float32, little endian, see TypedArray
+	private static final int TAG_FLOAT32_LE = 85;
+
+	private final OutputStream out;
+	private final byte[] scratch = new byte[9];
+
+	public CBORWriter(OutputStream out) {
+		this.out = out;
+	}
+
+	public void write(Object o) throws IOException {
+		if (o == null) {
+			out.write(NULL);
+		} else if (o instanceof Boolean) {
+			out.write((Boolean) o ? TRUE : FALSE);
+		} else if (o instanceof Integer || o instanceof Long || o instanceof Short || o instanceof Byte) {
+			writeInteger(((Number) o).longValue());
+		} else if (o instanceof Float) {
+			writeFloat((Float) o);
+		} else if (o instanceof Double) {
+			writeDouble((Double) o);
+		} else if (o instanceof String) {
+			byte[] bytes = ((String) o).getBytes(StandardCharsets.UTF_8);
+			writeTypeAndLength(MAJOR_TYPE_UNICODE_STRING, bytes.length);
+			out.write(bytes);
+		} else if (o instanceof RangeValues) {
+			writeRangeValues((RangeValues) o);
+		} else if (o instanceof CoverageStream) {
+			CoverageStream coverages = (CoverageStream) o;
+			writeTypeAndLength(MAJOR_TYPE_ARRAY, coverages.size());
+			coverages.forEachBatch(batch -> {
+				for (Object coverage : batch) {
+					write(coverage);
+				}
+				out.flush();
+			});
+		} else if (o instanceof List) {
+			List<?> l = (List<?>) o;
+			writeTypeAndLength(MAJOR_TYPE_ARRAY, l.size());
+			for (Object el : l) {
+				write(el);
+			}
+		} else if (o instanceof Map) {
+			Map<?,?> m = (Map<?,?>) o;
+			writeTypeAndLength(MAJOR_TYPE_MAP, m.size());
+			for (Entry<?,?> entry : m.entrySet()) {
+				write(entry.getKey());
+				write(entry.getValue());
+			}
+		} else if (o instanceof char[]) {
+			writeTypedArray(new TypedArray((char[]) o));
+		} else if (o instanceof byte[]) {
+			writeTypedArray(new TypedArray((byte[]) o));
+		} else if (o instanceof short[]) {
+			writeTypedArray(new TypedArray((short[]) o));
+		} else if (o instanceof int[]) {
+			writeTypedArray(new TypedArray((int[]) o));
+		} else if (o instanceof long[]) {
+			writeTypedArray(new TypedArray((long[]) o));
+		} else if (o instanceof float[]) {
+			writeTypedArray(new TypedArray((float[]) o));
+		} else if (o instanceof double[]) {
+			writeTypedArray(new TypedArray((double[]) o));
+		} else if (o instanceof Object[]) {
+			Object[] a = (Object[]) o;
+			writeTypeAndLength(MAJOR_TYPE_ARRAY, a.length);
+			for (Object el : a) {
+				write(el);
+			}
+		} else {
+			throw new RuntimeException("Type not supported: " + o.getClass().getName());
+		}
+	}
+
+	private void writeRangeValues(RangeValues vals) throws IOException {
+		if (vals.isCategorical()) {
+			writeTypeAndLength(MAJOR_TYPE_ARRAY, vals.size());
+			vals.forEachChunk(chunk -> {
+				int[] ints = chunk.getIntValues();
+				for (int i=0; i < chunk.length(); i++) {
+					if (chunk.isMissing(i)) {
+						out.write(NULL);
+					} else {
+						writeInteger(ints[i]);
+					}
+				}
+			});
+			return;
+		}
+
+		writeTypeAndLength(MAJOR_TYPE_TAG, TAG_FLOAT32_LE);
+		writeTypeAndLength(MAJOR_TYPE_BYTE_STRING, vals.size() * 4);
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(vals.size(), RangeValues.CHUNK_SIZE) * 4)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		vals.forEachChunk(chunk -> {
+			buffer.clear();
+			chunk.putFloat32(buffer);
+			out.write(buffer.array(), 0, buffer.position());
+		});
+	}
+
+	private void writeTypedArray(TypedArray arr) throws IOException {
+		writeTypeAndLength(MAJOR_TYPE_TAG, arr.getTag().getValue());
+		byte[] bytes = arr.getBytes();
+		writeTypeAndLength(MAJOR_TYPE_BYTE_STRING, bytes.length);
+		out.write(bytes);
+	}
+
+	private void writeInteger(long n) throws IOException {
+		if (n < 0) {
+			writeTypeAndLength(MAJOR_TYPE_NEGATIVE_INTEGER, -1 - n);
+		} else {
+			writeTypeAndLength(MAJOR_TYPE_UNSIGNED_INTEGER, n);
+		}
+	}
+
+	private void writeFloat(float f) throws IOException {
+		scratch[0] = (byte) SINGLE_PRECISION_FLOAT;
+		putBigEndian(Float.floatToIntBits(f), 4);
+		out.write(scratch, 0, 5);
+	}
+
+	private void writeDouble(double d) throws IOException {
+		scratch[0] = (byte) DOUBLE_PRECISION_FLOAT;
+		putBigEndian(Double.doubleToLongBits(d), 8);
+		out.write(scratch, 0, 9);
+	}
+
+	private void writeTypeAndLength(int majorType, long length) throws IOException {
+		int type = majorType << 5;
+		if (length < 24) {
+			out.write(type | (int) length);
+			return;
+		}
+		int bytes;
+		if (length < 0x100L) {
+			scratch[0] = (byte) (type | 24);
+			bytes = 1;
+		} else if (length < 0x10000L) {
+			scratch[0] = (byte) (type | 25);
+			bytes = 2;
+		} else if (length < 0x100000000L) {
+			scratch[0] = (byte) (type | 26);
+			bytes = 4;
+		} else {
+			scratch[0] = (byte) (type | 27);
+			bytes = 8;
+		}
+		putBigEndian(length, bytes);
+		out.write(scratch, 0, bytes + 1);
+	}
+
+	private void putBigEndian(long value, int bytes) {
+		for (int i=bytes; i > 0; i--) {
+			scratch[i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+}
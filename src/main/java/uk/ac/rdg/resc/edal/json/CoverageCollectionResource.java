@@ -1,6 +1,10 @@
 package uk.ac.rdg.resc.edal.json;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -8,13 +12,19 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import org.joda.time.DateTime;
+import org.restlet.data.Dimension;
+import org.restlet.data.Encoding;
 import org.restlet.data.Form;
 import org.restlet.data.Header;
 import org.restlet.data.Reference;
 import org.restlet.data.Status;
 import org.restlet.ext.jackson.JacksonRepresentation;
+import org.restlet.representation.ByteArrayRepresentation;
 import org.restlet.representation.Representation;
 import org.restlet.resource.Get;
 import org.restlet.resource.ServerResource;
@@ -22,22 +32,41 @@ import org.restlet.util.Series;
 
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.google.common.base.Supplier;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
 
 import uk.ac.rdg.resc.edal.dataset.Dataset;
-import uk.ac.rdg.resc.edal.domain.Extent;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
-import uk.ac.rdg.resc.edal.geometry.BoundingBox;
 import uk.ac.rdg.resc.edal.json.CoverageResource.Embed;
 import uk.ac.rdg.resc.edal.json.CoverageResource.FeatureMetadata;
+import uk.ac.rdg.resc.edal.json.OutlineCache.SerializedCollection;
 import uk.ac.rdg.resc.edal.metadata.Parameter;
-import uk.ac.rdg.resc.edal.util.GISUtils;
 
 @SuppressWarnings({ "rawtypes", "unchecked" })
 public class CoverageCollectionResource extends ServerResource {
 	
+	/**
+	 * Number of threads shared by all requests for building the coverages of a page,
+	 * can be set with the system property edal.json.pageThreads.
+	 */
+	static final int PAGE_THREADS = Integer.getInteger("edal.json.pageThreads", Runtime.getRuntime().availableProcessors());
+	
+	/**
+	 * Maximum number of threads a single request uses for building the coverages of a page,
+	 * can be set with the system property edal.json.pageConcurrency.
+	 */
+	static final int PAGE_CONCURRENCY = Integer.getInteger("edal.json.pageConcurrency", PAGE_THREADS);
+	
+	private static final ExecutorService PAGE_EXECUTOR = Executors.newFixedThreadPool(PAGE_THREADS, r -> {
+		Thread thread = new Thread(r, "coverage-page");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
 	class Paging {
 		int currentPage = 1;
 		int defaultElementsPerPage;
@@ -47,6 +76,13 @@ public class CoverageCollectionResource extends ServerResource {
 		int beginOffset;
 		int endOffset;
 		
+		/**
+		 * Continuation token of cursor-based paging, empty for the first page.
+		 * Null if page-based paging is used.
+		 */
+		String cursor;
+		boolean totalIsEstimate;
+		
 		Reference redirect;
 		String previous;
 		String next;
@@ -62,6 +98,10 @@ public class CoverageCollectionResource extends ServerResource {
 					throw new IllegalArgumentException("page must be >= 1");
 				}
 			}
+			this.cursor = getQueryValue("cursor");
+			if (this.cursor != null && page != null) {
+				throw new IllegalArgumentException("page and cursor cannot be combined");
+			}
 			String perPage = getQueryValue("num");
 			if (perPage != null) {
 				this.elementsPerPage = Integer.parseInt(perPage);
@@ -99,6 +139,66 @@ public class CoverageCollectionResource extends ServerResource {
 			}
 		}
 		
+		/**
+		 * Returns the feature ordinal where the scan for the current page starts.
+		 * 
+		 * @param filterHash hash of the filter the cursor was created for, see {@link #createCursor}
+		 */
+		int getCursorStart(FeatureIndex index, String filterHash) {
+			if (cursor.isEmpty()) {
+				return 0;
+			}
+			String token;
+			try {
+				token = new String(BaseEncoding.base64Url().decode(cursor), StandardCharsets.UTF_8);
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("invalid cursor");
+			}
+			int sep = token.indexOf(':');
+			if (sep == -1 || !token.substring(0, sep).equals(filterHash)) {
+				throw new IllegalArgumentException("cursor does not match the current filter");
+			}
+			String lastFeatureId = token.substring(sep+1);
+			int ordinal = index.getOrdinal(lastFeatureId);
+			// the cursor feature may have vanished, then continue at its insertion point
+			return ordinal >= 0 ? ordinal + 1 : -ordinal - 1;
+		}
+		
+		private String createCursor(String lastFeatureId, String filterHash) {
+			return BaseEncoding.base64Url().omitPadding().encode(
+					(filterHash + ":" + lastFeatureId).getBytes(StandardCharsets.UTF_8));
+		}
+		
+		/**
+		 * Finishes a cursor-based page.
+		 * 
+		 * @param total the number of matching features, possibly an estimate
+		 * @param lastFeatureId the last feature of this page, or null if there are no more pages 
+		 */
+		void setCursorPage(int total, boolean isEstimate, String lastFeatureId, String filterHash) {
+			this.totalElements = total;
+			this.totalIsEstimate = isEstimate;
+			
+			String datasetId = Reference.decode(getAttribute("datasetId"));
+			String baseUrl = getRootRef().toString() + "/datasets/" + datasetId + "/coverages";
+			Map<String,String> params = new HashMap<>();
+			if (this.defaultElementsPerPage != this.elementsPerPage) {
+				params.put("num", String.valueOf(this.elementsPerPage));
+			}
+			if (lastFeatureId != null) {
+				params.put("cursor", createCursor(lastFeatureId, filterHash));
+				next = baseUrl + getQueryString(params);
+			}
+			if (!cursor.isEmpty()) {
+				params.put("cursor", "");
+				first = baseUrl + getQueryString(params);
+			}
+		}
+		
+		boolean isPaged() {
+			return cursor != null ? (next != null || first != null) : totalPages > 1;
+		}
+		
 		private void createURLs() {
 			String datasetId = Reference.decode(getAttribute("datasetId"));
 			String baseUrl = getRootRef().toString() + "/datasets/" + datasetId + "/coverages";
@@ -146,15 +246,23 @@ public class CoverageCollectionResource extends ServerResource {
 		String collectionUrl = getRootRef().toString() + "/datasets/" + datasetId + "/coverages";
 		String queryString = Constraint.getQueryString(filter.getCanonicalQueryParams(), subset.getCanonicalQueryParams());
 		
-		List jsonFeatures = new LinkedList();
 				
 		Supplier<Dataset> dataset = datasetMeta.getLazyDataset();
 				
 		int totalCount = 0;
-		List<String> featureIdsInPage = new LinkedList<>();
-		for (String featureId : datasetMeta.getFeatureIds()) {
+		LinkedList<String> featureIdsInPage = new LinkedList<>();
+		// bbox, time and vertical constraints are resolved by the index
+		FeatureIndex index = datasetMeta.getFeatureIndex();
+		BitSet candidates = index.query(filter);
+		
+		// in cursor mode, only the page itself is scanned and the iteration stops when it is full
+		String filterHash = Hashing.murmur3_32().hashString(queryString, StandardCharsets.UTF_8).toString();
+		int start = paging.cursor == null ? 0 : paging.getCursorStart(index, filterHash);
+		boolean hasMore = false;
+		
+		for (int i = candidates.nextSetBit(start); i >= 0; i = candidates.nextSetBit(i+1)) {
+			String featureId = index.getFeatureId(i);
 			FeatureMetadata meta = datasetMeta.getFeatureMetadata(featureId);
-			DomainMetadata domainMeta = meta.domainMeta;
 			RangeMetadata rangeMeta = meta.rangeMeta;
 			
 			if (filter.type.isPresent()) {
@@ -166,55 +274,14 @@ public class CoverageCollectionResource extends ServerResource {
 				params.retainAll(filter.params.get());
 				if (params.isEmpty()) continue;
 			}
-						
-			if (filter.bbox.isPresent()) {
-				// TODO we cannot use GeographicBoundingBox here as
-				//  this cannot span the discontinuity...
-				BoundingBox bb = domainMeta.getBoundingBox();
-				
-				if (!GISUtils.isWgs84LonLat(bb.getCoordinateReferenceSystem())) {
-					throw new RuntimeException("only WGS84 supported currently");
-				}
-				DatelineBoundingBox geoBB = new DatelineBoundingBox(bb);
-				if (!geoBB.intersects(filter.bbox.get())) {
-					continue;
-				}
-			}
 			
-			/*
-			 * Time filtering rules:
-			 * 1. Feature has no time information
-			 * 1a. Time filter is given -> ??? probably skip feature
-			 * 1b. Time filter not given -> include
-			 * 2. Feature has time information
-			 * 2a. Time filter is given -> check intersection
-			 * 2b. Time filter not given -> include
-			 */
-			if (filter.timeExtent.getLow() == null && filter.timeExtent.getHigh() == null) {
-				// include
-			} else {
-				Extent<DateTime> t = domainMeta.getTimeExtent();
-				if (t == null || !t.intersects(filter.timeExtent)) {
-					continue;
-				}
-			}
-			
-			/*
-			 * Vertical filtering rules:
-			 * 1. Feature has no vertical information
-			 * 1a. Vertical filter is given -> skip feature
-			 * 1b. Vertical filter not given -> include
-			 * 2. Feature has vertical information
-			 * 2a. Vertical filter is given -> check intersection
-			 * 2b. Vertical filter not given -> include
-			 */
-			if (filter.verticalExtent.getLow() == null && filter.verticalExtent.getHigh() == null) {
-				// include
-			} else {
-				Extent<Double> v = domainMeta.getVerticalExtent();
-				if (v == null || !v.intersects(filter.verticalExtent)) {
-					continue;
+			if (paging.cursor != null) {
+				if (featureIdsInPage.size() == paging.elementsPerPage) {
+					hasMore = true;
+					break;
 				}
+				featureIdsInPage.add(featureId);
+				continue;
 			}
 			
 			++totalCount;
@@ -224,20 +291,30 @@ public class CoverageCollectionResource extends ServerResource {
 				featureIdsInPage.add(featureId);
 			}
 		}
-		paging.setTotalElements(totalCount);
+		if (paging.cursor != null) {
+			// type and parameter filters are not part of the index, the count is then an estimate
+			boolean isEstimate = filter.type.isPresent() || filter.params.isPresent();
+			String lastFeatureId = hasMore ? featureIdsInPage.getLast() : null;
+			paging.setCursorPage(candidates.cardinality(), isEstimate, lastFeatureId, filterHash);
+		} else {
+			paging.setTotalElements(totalCount);
+		}
 		
-		for (String featureId : featureIdsInPage) {		
-			Map feature;
-			FeatureMetadata meta = datasetMeta.getFeatureMetadata(featureId);
-			if (asGeojson) {
-				 feature = CoverageOutlinesResource.getOutlinesAsGeoJson(dataset, meta, getRootRef().toString(), 
-						subset).build();
+		String rootUri = getRootRef().toString();
+		List<FeatureMetadata> metasInPage = Utils.mapList(featureIdsInPage, datasetMeta::getFeatureMetadata);
+		OutlineCache outlines = datasetMeta.getOutlines(rootUri);
+		// coverages are only built while the response is written, except the first batch
+		// such that errors can still be answered with an error status
+		CoverageStream jsonFeatures = new CoverageStream(metasInPage, meta -> {
+			if (asGeojson && !subset.isConstrained) {
+				return outlines.getFeature(meta);
+			} else if (asGeojson) {
+				return CoverageOutlinesResource.getOutlinesAsGeoJson(dataset, meta, rootUri, subset).build();
 			} else {
-				feature = CoverageResource.getCoverageAsCovJson(dataset, meta, getRootRef().toString(), 
-						embed, subset, true).build();
+				return CoverageResource.getCoverageAsCovJson(dataset, meta, rootUri, embed, subset, true).build();
 			}
-			jsonFeatures.add(feature);
-		}
+		});
+		jsonFeatures.buildFirstBatch();
 		
 		
 		Builder j = ImmutableMap.builder();
@@ -320,8 +397,11 @@ public class CoverageCollectionResource extends ServerResource {
 						));
 		}
 		
-		if (paging.totalPages > 1) {
+		if (paging.isPaged()) {
 			j.put("hydra:totalItems", paging.totalElements);
+			if (paging.totalIsEstimate) {
+				j.put(Constants.CovAPIPrefix + ":totalItemsIsEstimate", true);
+			}
 			Builder pagination = ImmutableMap.builder()
 					.put("id", getReference().toString())
 					.put("type", Constants.HydraPrefix + ":PartialCollectionView")
@@ -355,6 +435,54 @@ public class CoverageCollectionResource extends ServerResource {
 		return j;
 	}
 	
+	/**
+	 * Builds the JSON of a coverage, either as Map or as already serialized {@link OutlineCache.RawJson}.
+	 */
+	interface CoverageJsonBuilder {
+		Object build(FeatureMetadata meta) throws IOException, EdalException;
+	}
+	
+	/**
+	 * Builds the JSON of all coverages of a page on the shared pool, keeping their order.
+	 * The page is split into at most {@link #PAGE_CONCURRENCY} consecutive parts such that
+	 * a single request cannot occupy more threads than that.
+	 */
+	static List<Object> buildInParallel(List<FeatureMetadata> metas, CoverageJsonBuilder builder) throws IOException, EdalException {
+		Object[] results = new Object[metas.size()];
+		int parts = Math.min(PAGE_CONCURRENCY, metas.size());
+		if (parts <= 1) {
+			for (int i=0; i < results.length; i++) {
+				results[i] = builder.build(metas.get(i));
+			}
+			return Arrays.asList(results);
+		}
+		List<Future<?>> futures = new ArrayList<>(parts);
+		for (int p=0; p < parts; p++) {
+			int from = (int) ((long) metas.size() * p / parts);
+			int to = (int) ((long) metas.size() * (p+1) / parts);
+			futures.add(PAGE_EXECUTOR.submit(() -> {
+				for (int i=from; i < to; i++) {
+					results[i] = builder.build(metas.get(i));
+				}
+				return null;
+			}));
+		}
+		try {
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			futures.forEach(f -> f.cancel(true));
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			futures.forEach(f -> f.cancel(true));
+			Throwables.propagateIfPossible(e.getCause(), IOException.class, EdalException.class);
+			throw new RuntimeException(e.getCause());
+		}
+		return Arrays.asList(results);
+	}
+	
 	void setPagingHeaders(Paging paging) {		
 		Map<String,String> links = new HashMap<>();
 				
@@ -389,7 +517,7 @@ public class CoverageCollectionResource extends ServerResource {
 		return null;
 	}
 		
-	@Get("covjson|covjsons|covcbor|covmsgpack")
+	@Get("covjson|covjsons|covcbor|covmsgpack|covmsgpacktyped")
 	public Representation covjson() throws IOException, EdalException {
 		// FIXME cheap hack, rather separate geojson out into separate resource (like CoverageOutlinesResource)
 		if (getReference().toString().contains("/outlines")) {
@@ -435,6 +563,18 @@ public class CoverageCollectionResource extends ServerResource {
 		return App.getCovJsonRepresentation(this, j);
 	}
 		
+	private Representation getSerializedRepresentation(SerializedCollection collection) {
+		getResponse().getDimensions().add(Dimension.ENCODING);
+		Representation r;
+		if (App.acceptsGzip(this)) {
+			r = new ByteArrayRepresentation(collection.gzipped, App.GeoJSON);
+			r.getEncodings().add(Encoding.GZIP);
+		} else {
+			r = new ByteArrayRepresentation(collection.json, App.GeoJSON);
+		}
+		return r;
+	}
+	
 	@Get("geojson")
 	public Representation geojson() throws IOException, EdalException {
 		// Note: paging is disabled for geojson by having very high default items per page
@@ -459,6 +599,14 @@ public class CoverageCollectionResource extends ServerResource {
 				return null;
 			}
 			
+			if (getQuery().isEmpty() && App.acceptsJSON(this)) {
+				// the unfiltered collection is unpaged and served as a whole from the outline cache
+				final String datasetId = Reference.decode(getAttribute("datasetId"));
+				OutlineCache outlines = DatasetResource.getDatasetMetadata(datasetId).getOutlines(getRootRef().toString());
+				SerializedCollection collection = outlines.getCollection(() -> getFeaturesJson(true, paging, filter, subset).build());
+				return getSerializedRepresentation(collection);
+			}
+			
 			j = getFeaturesJson(true, paging, filter, subset).build();
 		} catch (IllegalArgumentException e) {
 			setStatus(Status.CLIENT_ERROR_NOT_FOUND);
@@ -4,8 +4,6 @@ import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
 import org.joda.time.DateTime;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
@@ -23,19 +21,21 @@ import org.restlet.util.Series;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
-import com.google.common.primitives.Ints;
 
 import uk.ac.rdg.resc.edal.dataset.Dataset;
 import uk.ac.rdg.resc.edal.domain.Extent;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.feature.DiscreteFeature;
+import uk.ac.rdg.resc.edal.feature.GridFeature;
 import uk.ac.rdg.resc.edal.grid.AbstractTransformedGrid;
 import uk.ac.rdg.resc.edal.grid.RectilinearGrid;
 import uk.ac.rdg.resc.edal.grid.ReferenceableAxis;
 import uk.ac.rdg.resc.edal.grid.RegularGrid;
 import uk.ac.rdg.resc.edal.grid.TimeAxis;
 import uk.ac.rdg.resc.edal.grid.VerticalAxis;
+import uk.ac.rdg.resc.edal.json.CoverageResource.FeatureMetadata;
 import uk.ac.rdg.resc.edal.json.CoverageResource.UniformFeature;
+import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
 import uk.ac.rdg.resc.edal.position.VerticalCrs;
 
 @SuppressWarnings({ "rawtypes", "unchecked" })
@@ -44,7 +44,7 @@ public class CoverageDomainResource extends ServerResource {
 	public static final String COORDINATES = "coordinates";
 	public static final String SYSTEM = "system";
 
-	@Get("covjson|covcbor|covmsgpack")
+	@Get("covjson|covcbor|covmsgpack|covmsgpacktyped")
 	public Representation json() throws IOException, EdalException {
 		String datasetId = Reference.decode(getAttribute("datasetId"));
 		String featureId = Reference.decode(getAttribute("coverageId"));
@@ -53,8 +53,21 @@ public class CoverageDomainResource extends ServerResource {
 		
 		String coverageUrl = getRootRef() + "/datasets/" + datasetId + "/coverages/" + featureId;
 		
-		UniformFeature uniFeature =
-				new UniformFeature((DiscreteFeature)dataset.readFeature(featureId));
+		UniformFeature uniFeature = null;
+		FeatureMetadata meta = DatasetResource.getDatasetMetadata(datasetId).getFeatureMetadata(featureId);
+		if (meta != null && GridFeature.class.isAssignableFrom(meta.type)) {
+			// the domain of a grid is known from the variable metadata, no values have to be read
+			String paramId = meta.rangeMeta.getParameterIds().iterator().next();
+			VariableMetadata varMeta = dataset.getVariableMetadata(paramId);
+			if (GridSubsetReader.isVariableOfFeature(varMeta, featureId)) {
+				uniFeature = UniformFeature.fromGridVariable(varMeta);
+			}
+		}
+		if (uniFeature == null) {
+			try (Metrics.Timer timer = Metrics.time(Metrics.Phase.READ)) {
+				uniFeature = new UniformFeature((DiscreteFeature)dataset.readFeature(featureId));
+			}
+		}
 		
 		Series<Header> headers = this.getResponse().getHeaders();
 		
@@ -95,11 +108,11 @@ public class CoverageDomainResource extends ServerResource {
 		return domainJson.build();
 	}
 	
-	private static void addHorizontalGrid(RectilinearGrid grid, Constraint subset, Builder axes, List referencing) {
+	private static void addHorizontalGrid(RectilinearGrid grid, SubsetConstraint subset, Builder axes, List referencing) {
 		List<Double> x = grid.getXAxis().getCoordinateValues();
 		List<Double> y = grid.getYAxis().getCoordinateValues();
-		double[] subsettedX = getXAxisIndices(grid.getXAxis(), subset).mapToDouble(x::get).toArray();
-		double[] subsettedY = getYAxisIndices(grid.getYAxis(), subset).mapToDouble(y::get).toArray();
+		double[] subsettedX = getXAxisIndices(grid.getXAxis(), subset).stream().mapToDouble(x::get).toArray();
+		double[] subsettedY = getYAxisIndices(grid.getYAxis(), subset).stream().mapToDouble(y::get).toArray();
 		
 		// X axis
 		if (grid instanceof RegularGrid) {
@@ -107,7 +120,7 @@ public class CoverageDomainResource extends ServerResource {
 			int xnum = subsettedX.length;
 			double xstart = subsettedX[0];
 			double xstop = subsettedX[xnum-1];
-			double xstep = reggrid.getXAxis().getCoordinateSpacing();
+			double xstep = reggrid.getXAxis().getCoordinateSpacing() * subset.stride;
 			if (subsettedX.length > 1) {
 				axes.put("x", ImmutableMap.of(
 				    		"start", xstart,
@@ -134,7 +147,7 @@ public class CoverageDomainResource extends ServerResource {
 			int ynum = subsettedY.length;
 			double ystart = subsettedY[0];
 			double ystop = subsettedY[ynum-1];
-			double ystep = reggrid.getYAxis().getCoordinateSpacing();
+			double ystep = reggrid.getYAxis().getCoordinateSpacing() * subset.stride;
 			if (subsettedY.length > 1) {
 				axes.put("y", ImmutableMap.of(
 					    		"start", ystart,
@@ -164,22 +177,24 @@ public class CoverageDomainResource extends ServerResource {
 		//  -> how do we query that except checking if low==high?
 	}
 	
-	private static void addHorizontalGrid(AbstractTransformedGrid grid, Constraint subset, Builder axes, List referencing) {
+	private static void addHorizontalGrid(AbstractTransformedGrid grid, SubsetConstraint subset, Builder axes, List referencing) {
 		if (subset.latitudeExtent.getLow() != null || subset.latitudeExtent.getHigh() != null ||
 				subset.longitudeExtent.getLow() != null || subset.longitudeExtent.getHigh() != null) {
 			throw new IllegalStateException("Horizontal subsetting not supported for projected grids");
 		}
 		// FIXME the start and stop coordinates are wrong, but there's no way to access those via EDAL
+		IndexRange xIndices = IndexRange.of(0, grid.getXSize()-1).withStride(subset.stride);
+		IndexRange yIndices = IndexRange.of(0, grid.getYSize()-1).withStride(subset.stride);
 		axes.putAll(ImmutableMap.of(
 			    "x", ImmutableMap.of(
-			    		"start", 0,
-			    		"stop", grid.getXSize()-1,
-			    		"num", grid.getXSize()
+			    		"start", xIndices.getFirst(),
+			    		"stop", xIndices.getLast(),
+			    		"num", xIndices.size()
 			    		),
 				"y", ImmutableMap.of(
-			    		"start", 0,
-			    		"stop", grid.getYSize()-1,
-			    		"num", grid.getYSize()
+			    		"start", yIndices.getFirst(),
+			    		"stop", yIndices.getLast(),
+			    		"num", yIndices.size()
 			    		)
 				));
 	
@@ -250,7 +265,7 @@ public class CoverageDomainResource extends ServerResource {
 			return;
 		}
 		List<Double> heights = z.getCoordinateValues();
-		double[] subsettedHeights = getVerticalAxisIndices(z, subset).mapToDouble(heights::get).toArray();
+		double[] subsettedHeights = getVerticalAxisIndices(z, subset).stream().mapToDouble(heights::get).toArray();
 		
 		axes.put("z", ImmutableMap.of("values", subsettedHeights));
 		
@@ -270,7 +285,7 @@ public class CoverageDomainResource extends ServerResource {
 			return;
 		}
 		List<DateTime> times = t.getCoordinateValues();
-		String[] subsettedTimes = getTimeAxisIndices(t, subset)
+		String[] subsettedTimes = getTimeAxisIndices(t, subset).stream()
 				.mapToObj(i -> times.get(i).toString())
 				.toArray(String[]::new);
 		
@@ -291,66 +306,47 @@ public class CoverageDomainResource extends ServerResource {
 		//domainJson.put("timeBounds", t.getDomainObjects().iterator());
 	}
 	
-	public static IntStream getVerticalAxisIndices(VerticalAxis ax, SubsetConstraint subset) {
+	public static IndexRange getVerticalAxisIndices(VerticalAxis ax, SubsetConstraint subset) {
 		if (ax == null) {
-			return IntStream.of(0);
+			return IndexRange.single(0);
 		}
 		
 		// FIXME bounds are wrong for EN3 dataset
 		// -> they should be single points but are calculated bounds which becomes a problem
 		//    e.g. if the only z coords are [ 0.0, 3022] then extent and bounds will cover a lot more
 		
-		List<Extent<Double>> bounds = IntStream.range(0, ax.size())
-				.mapToObj(ax::getCoordinateBounds)
-				.collect(Collectors.toList());
+		IndexRange axIndices = AxisIndexResolver.resolve(ax, subset.verticalExtent);
 		
-		IntStream axIndices = IntStream.range(0, ax.size())
-			.filter(i -> subset.verticalExtent.intersects(bounds.get(i)));
-		
-		if (!subset.verticalTarget.isPresent()) {
+		if (!subset.verticalTarget.isPresent() || axIndices.isEmpty()) {
 			return axIndices;
 		}
 		
 		// find vertical value closest to target and return its index
-		List<Double> values = ax.getCoordinateValues();
 		double target = subset.verticalTarget.get();
-		List<Integer> indices = Ints.asList(axIndices.toArray());
-		List<Double> distances = Utils.mapList(indices, i -> Math.abs(values.get(i) - target));
 		double minDistance = Double.POSITIVE_INFINITY;
-		int minIdx = 0;
-		int i = 0;
-		for (double distance : distances) {
+		int minIdx = axIndices.getFirst();
+		for (int i=0; i < axIndices.size(); i++) {
+			int idx = axIndices.get(i);
+			double distance = Math.abs(ax.getCoordinateValue(idx) - target);
 			if (distance < minDistance) {
 				minDistance = distance;
-				minIdx = i;
+				minIdx = idx;
 			}
-			++i;
 		}		
-		return IntStream.of(indices.get(minIdx));
+		return IndexRange.single(minIdx);
 	}
 	
-	public static IntStream getTimeAxisIndices(TimeAxis ax, Constraint subset) {
+	public static IndexRange getTimeAxisIndices(TimeAxis ax, Constraint subset) {
 		if (ax == null) {
-			return IntStream.of(0);
+			return IndexRange.single(0);
 		}
-		// FIXME add overload in EDAL to get all coordinate bounds as List like the values
-		//  -> very similar to getDomainObjects but better semantics and List type
-		List<Extent<DateTime>> bounds = IntStream.range(0, ax.size())
-				.mapToObj(ax::getCoordinateBounds)
-				.collect(Collectors.toList());
-		IntStream axIndices = IntStream.range(0, ax.size())
-			.filter(i -> subset.timeExtent.intersects(bounds.get(i)));
-		return axIndices;
+		return AxisIndexResolver.resolve(ax, subset.timeExtent);
 	}
 	
 	/**
 	 * NOTE: supports rectilinear lon-lat grids only for now
 	 */
-	public static IntStream getXAxisIndices(ReferenceableAxis<Double> ax, Constraint subset) {
-		List<Extent<Double>> bounds = IntStream.range(0, ax.size())
-				.mapToObj(ax::getCoordinateBounds)
-				.collect(Collectors.toList());
-
+	public static IndexRange getXAxisIndices(ReferenceableAxis<Double> ax, SubsetConstraint subset) {
 		Extent<Double> lonExtent;
 		if (subset.longitudeExtent.getLow() != null) {
 			// wrap the (unwrapped) query longitude to the longitude range of the coverage domain
@@ -359,22 +355,14 @@ public class CoverageDomainResource extends ServerResource {
 		} else {
 			lonExtent = subset.longitudeExtent;
 		}
-		
-		IntStream axIndices = IntStream.range(0, ax.size())
-			.filter(i -> lonExtent.intersects(bounds.get(i)));
-		return axIndices;
+		return AxisIndexResolver.resolve(ax, lonExtent).withStride(subset.stride);
 	}
 
 	/**
 	 * NOTE: supports rectilinear lon-lat grids only for now
 	 */
-	public static IntStream getYAxisIndices(ReferenceableAxis<Double> ax, Constraint subset) {
-		List<Extent<Double>> bounds = IntStream.range(0, ax.size())
-				.mapToObj(ax::getCoordinateBounds)
-				.collect(Collectors.toList());
-		IntStream axIndices = IntStream.range(0, ax.size())
-			.filter(i -> subset.latitudeExtent.intersects(bounds.get(i)));
-		return axIndices;
+	public static IndexRange getYAxisIndices(ReferenceableAxis<Double> ax, SubsetConstraint subset) {
+		return AxisIndexResolver.resolve(ax, subset.latitudeExtent).withStride(subset.stride);
 	}
 	
 		
@@ -4,7 +4,6 @@ import java.io.IOException;
 import java.time.LocalDate;
 import java.time.ZoneId;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -23,12 +22,14 @@ import com.google.common.collect.ImmutableMap;
 import uk.ac.rdg.resc.edal.dataset.Dataset;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.feature.DiscreteFeature;
+import uk.ac.rdg.resc.edal.feature.GridFeature;
 import uk.ac.rdg.resc.edal.feature.ProfileFeature;
 import uk.ac.rdg.resc.edal.grid.ReferenceableAxis;
 import uk.ac.rdg.resc.edal.grid.RegularAxisImpl;
 import uk.ac.rdg.resc.edal.json.CoverageResource.FeatureMetadata;
 import uk.ac.rdg.resc.edal.json.CoverageResource.UniformFeature;
 import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
 import uk.ac.rdg.resc.edal.util.Array;
 import uk.ac.rdg.resc.edal.util.Array4D;
 
@@ -36,44 +37,96 @@ import uk.ac.rdg.resc.edal.util.Array4D;
 public class CoverageRangeResource extends ServerResource {
 		
 	public static Map getRangeJson(String datasetId, String featureId, String paramId, SubsetConstraint subset) throws EdalException, IOException {		
-		FeatureMetadata meta = DatasetResource.getDatasetMetadata(datasetId).getFeatureMetadata(featureId);
 		Dataset dataset = Utils.getDataset(datasetId);
+		
+		FeatureMetadata meta = DatasetResource.getDatasetMetadata(datasetId).getFeatureMetadata(featureId);
+		if (meta != null && GridFeature.class.isAssignableFrom(meta.type) && meta.rangeMeta.getParameter(paramId) != null) {
+			Map j = getRangeJsonFromSubsetRead(dataset, featureId, paramId, subset);
+			if (j != null) {
+				return j;
+			}
+		}
+		
 		DiscreteFeature feature;
-		try {
+		try (Metrics.Timer timer = Metrics.time(Metrics.Phase.READ)) {
 			feature = (DiscreteFeature) dataset.readFeature(featureId);
 		} catch (ClassCastException e) {
 			throw new IllegalArgumentException("Only discrete features are supported");
 		}
-		Parameter param = feature.getParameter(paramId);
 		
 		UniformFeature uniFeature =	new UniformFeature(feature);
+		AxesIndices ind = getAxesIndices(uniFeature, subset);
 		
+		return getRangeJson(uniFeature, ind, paramId);
+	}
+	
+	/**
+	 * Reads only the requested index box of a grid variable instead of the whole feature.
+	 * 
+	 * @return null if the dataset or grid doesn't support bounded reads,
+	 *         or if the variable is not the one the feature is read from
+	 */
+	private static Map getRangeJsonFromSubsetRead(Dataset dataset, String featureId, String paramId,
+			SubsetConstraint subset) throws EdalException {
+		VariableMetadata varMeta = dataset.getVariableMetadata(paramId);
+		if (!GridSubsetReader.isVariableOfFeature(varMeta, featureId)) {
+			return null;
+		}
+		UniformFeature uniFeature = UniformFeature.fromGridVariable(varMeta);
+		if (uniFeature == null) {
+			return null;
+		}
+		AxesIndices ind = getAxesIndices(uniFeature, subset);
+		// low resolution requests are served from a decimated copy if there is one already
+		Array4D<Number> vals;
+		try (Metrics.Timer timer = Metrics.time(Metrics.Phase.EXTRACT)) {
+			vals = OverviewStore.read(dataset, paramId, uniFeature, ind);
+		}
+		if (vals == null) {
+			vals = GridSubsetReader.read(dataset, paramId, ind, uniFeature.getShape());
+		}
+		if (vals == null) {
+			return null;
+		}
+		return getRangeJson(uniFeature, ind, varMeta.getParameter(), vals);
+	}
+	
+	/**
+	 * Builds the range of a single parameter from an already read feature.
+	 * This allows to extract several parameters with a single feature read
+	 * and axes indices computation.
+	 */
+	static Map getRangeJson(UniformFeature uniFeature, AxesIndices ind, String paramId) {
+		DiscreteFeature feature = uniFeature.feature;
+		Parameter param = feature.getParameter(paramId);
+		return getRangeJson(uniFeature, ind, param, feature.getValues(param.getVariableId()));
+	}
+	
+	private static Map getRangeJson(UniformFeature uniFeature, AxesIndices ind, Parameter param, Array<Number> valsArr) {
 		boolean isCategorical = param.getCategories() != null;
 		String dtype = isCategorical ? "integer" : "float";
 		
-		AxesIndices ind = getAxesIndices(uniFeature, subset);
-		
 		List<Integer> shape = new LinkedList<>();
 		List<String> axisNames = new LinkedList<>();
 		if (uniFeature.t != null) {
 			axisNames.add("t");
-			shape.add(ind.t.length);
+			shape.add(ind.t.size());
 		}
 		if (uniFeature.z != null) {
 			axisNames.add("z");
-			shape.add(ind.z.length);
+			shape.add(ind.z.size());
 		}
 		axisNames.add("y");
-		shape.add(ind.y.length);
+		shape.add(ind.y.size());
 		axisNames.add("x");
-		shape.add(ind.x.length);
+		shape.add(ind.x.size());
 		
 		Map j = ImmutableMap.of(
 				"type", "NdArray",
 				"dataType", dtype,
 				"axisNames", axisNames,
 				"shape", shape,
-				"values", getValues(feature.getValues(param.getVariableId()), uniFeature, ind, isCategorical)
+				"values", getValues(valsArr, uniFeature, ind, isCategorical)
 				// TODO enable again when CBOR missing-value encoding is implemented and only output for CBOR
 //				"validMin", meta.rangeMeta.getMinValue(param),
 //				"validMax", meta.rangeMeta.getMaxValue(param)
@@ -90,7 +143,7 @@ public class CoverageRangeResource extends ServerResource {
 		return getRangeJson(datasetId, featureId, paramId, subset);
 	}
 
-	@Get("covjson|covcbor|covmsgpack")
+	@Get("covjson|covcbor|covmsgpack|covmsgpacktyped")
 	public Representation json() throws IOException, EdalException {
 		Series<Header> headers = this.getResponse().getHeaders();
 		
@@ -102,31 +155,37 @@ public class CoverageRangeResource extends ServerResource {
 	}
 	
 	static class AxesIndices {
-		int[] x;
-		int[] y;
-		int[] z;
-		int[] t;
+		IndexRange x;
+		IndexRange y;
+		IndexRange z;
+		IndexRange t;
+	}
+	
+	static AxesIndices getAxesIndices(UniformFeature uniFeature, SubsetConstraint subset) {
+		try (Metrics.Timer timer = Metrics.time(Metrics.Phase.INDEX)) {
+			return doGetAxesIndices(uniFeature, subset);
+		}
 	}
 	
-	private static AxesIndices getAxesIndices(UniformFeature uniFeature, SubsetConstraint subset) {
-		int[] xIndices;
-		int[] yIndices;
+	private static AxesIndices doGetAxesIndices(UniformFeature uniFeature, SubsetConstraint subset) {
+		IndexRange xIndices;
+		IndexRange yIndices;
 		
 		if (uniFeature.rectgrid != null) {
-			xIndices = CoverageDomainResource.getXAxisIndices(uniFeature.rectgrid.getXAxis(), subset).toArray();
-			yIndices = CoverageDomainResource.getYAxisIndices(uniFeature.rectgrid.getYAxis(), subset).toArray();
+			xIndices = CoverageDomainResource.getXAxisIndices(uniFeature.rectgrid.getXAxis(), subset);
+			yIndices = CoverageDomainResource.getYAxisIndices(uniFeature.rectgrid.getYAxis(), subset);
 		} else if (uniFeature.projgrid != null) {
 			// FIXME the start and stop coordinates are wrong, but there's no way to access those via EDAL
 			ReferenceableAxis<Double> xAxis = new RegularAxisImpl("x", 0, 1, uniFeature.projgrid.getXSize(), false);
 			ReferenceableAxis<Double> yAxis = new RegularAxisImpl("y", 0, 1, uniFeature.projgrid.getYSize(), false);
-			xIndices = CoverageDomainResource.getXAxisIndices(xAxis, subset).toArray();
-			yIndices = CoverageDomainResource.getYAxisIndices(yAxis, subset).toArray();
+			xIndices = CoverageDomainResource.getXAxisIndices(xAxis, subset);
+			yIndices = CoverageDomainResource.getYAxisIndices(yAxis, subset);
 		} else {
 			throw new RuntimeException("Not implemented");
 		}
 		
-		int[] zIndices = CoverageDomainResource.getVerticalAxisIndices(uniFeature.z, subset).toArray();
-		int[] tIndices = CoverageDomainResource.getTimeAxisIndices(uniFeature.t, subset).toArray();
+		IndexRange zIndices = CoverageDomainResource.getVerticalAxisIndices(uniFeature.z, subset);
+		IndexRange tIndices = CoverageDomainResource.getTimeAxisIndices(uniFeature.t, subset);
 		
 		AxesIndices ind = new AxesIndices();
 		ind.t = tIndices;
@@ -136,23 +195,8 @@ public class CoverageRangeResource extends ServerResource {
 		return ind;
 	}
 	
-	public static List<Number> getValues(Array<Number> valsArr, UniformFeature uniFeature, 
+	public static RangeValues getValues(Array<Number> valsArr, UniformFeature uniFeature, 
 			AxesIndices ind, boolean isCategorical) {
-		if (valsArr.size() > Integer.MAX_VALUE) {
-			throw new RuntimeException("Array too big, consider subsetting!");
-		}
-		
-		int[] xIndices = ind.x;
-		int[] yIndices = ind.y;
-		int[] zIndices = ind.z;
-		int[] tIndices = ind.t;		
-
-		long size = xIndices.length * yIndices.length * zIndices.length * tIndices.length;
-		if (size > 3600*7200) {
-			// TODO implement streaming solution
-			throw new RuntimeException("range too big, please subset");
-		}
-		
 		// FIXME EN3 has 99999.0 as values which probably means missing
 		//  -> shouldn't this be detected by EDAL and returned as null instead?
 				
@@ -162,8 +206,11 @@ public class CoverageRangeResource extends ServerResource {
 		if (valsArr instanceof Array4D) {
 			vals4D = (Array4D<Number>) valsArr;
 		} else if (uniFeature.feature instanceof ProfileFeature) {
+			if (valsArr.size() > Integer.MAX_VALUE) {
+				throw new RuntimeException("Array too big, consider subsetting!");
+			}
 			// Array1D varying over vertical axis
-			vals4D = new Array4D<Number>(1, zIndices.length, 1, 1) {
+			vals4D = new Array4D<Number>(1, (int) valsArr.size(), 1, 1) {
 				@Override
 				public Number get(int... coords) {
 					return valsArr.get(coords[1]);
@@ -177,22 +224,8 @@ public class CoverageRangeResource extends ServerResource {
 			throw new RuntimeException("not supported: " + valsArr.getClass().getName());
 		}
 		
-		Number[] vals = new Number[xIndices.length * yIndices.length * 
-				zIndices.length * tIndices.length];
-		
-		int i = 0;
-		for (int t : tIndices) {
-			for (int z : zIndices) {
-				for (int y : yIndices) {
-					for (int x : xIndices) {
-						Number val = vals4D.get(t, z, y, x);
-						vals[i++] = isCategorical && val != null ? val.intValue() : val;
-					}
-				}
-			}
-		}
-		
-		return Arrays.asList(vals);
+		// values are extracted while the response is written, see RangeValues
+		return new RangeValues(vals4D, ind, isCategorical);
 	}
 	
 	public static float[] getValues_(Array<Number> valsArr) {
@@ -36,7 +36,9 @@ import uk.ac.rdg.resc.edal.grid.ReferenceableAxisImpl;
 import uk.ac.rdg.resc.edal.grid.TimeAxis;
 import uk.ac.rdg.resc.edal.grid.TimeAxisImpl;
 import uk.ac.rdg.resc.edal.grid.VerticalAxis;
+import uk.ac.rdg.resc.edal.json.CoverageRangeResource.AxesIndices;
 import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
 import uk.ac.rdg.resc.edal.position.HorizontalPosition;
 
 @SuppressWarnings({ "rawtypes", "unchecked" })
@@ -53,10 +55,19 @@ public class CoverageResource extends ServerResource {
 			this.datasetId = datasetId;
 			this.featureId = feature.getId();
 			this.domainMeta = new DomainMetadata(feature);
-			this.rangeMeta = new RangeMetadata(feature);
+			this.rangeMeta = new RangeMetadata(datasetId, feature);
 			this.name = feature.getName();
 			this.type = feature.getClass();
 		}
+		FeatureMetadata(String datasetId, String featureId, String name, Class<?> type,
+				DomainMetadata domainMeta, RangeMetadata rangeMeta) {
+			this.datasetId = datasetId;
+			this.featureId = featureId;
+			this.name = name;
+			this.type = type;
+			this.domainMeta = domainMeta;
+			this.rangeMeta = rangeMeta;
+		}
 	}
 		
 	// FIXME send Vary: Prefer header
@@ -95,8 +106,11 @@ public class CoverageResource extends ServerResource {
 				.put("type", "Coverage")
 				.put("id", coverageUrl + queryString);
 				
-		Supplier<UniformFeature> feature =
-				Suppliers.memoize(() -> new UniformFeature((DiscreteFeature)dataset.get().readFeature(meta.featureId)));
+		Supplier<UniformFeature> feature = Suppliers.memoize(() -> {
+			try (Metrics.Timer timer = Metrics.time(Metrics.Phase.READ)) {
+				return new UniformFeature((DiscreteFeature)dataset.get().readFeature(meta.featureId));
+			}
+		});
 
 		try {
 			if (details.domain) {
@@ -138,7 +152,7 @@ public class CoverageResource extends ServerResource {
 		return null;
 	}
 	
-	@Get("covjson|covjsons|covcbor|covmsgpack")
+	@Get("covjson|covjsons|covcbor|covmsgpack|covmsgpacktyped")
 	public Representation covjson() throws IOException, EdalException {
 		addLinkHeaders();
 		
@@ -218,6 +232,57 @@ public class CoverageResource extends ServerResource {
 		TimeAxis t;
 		VerticalAxis z;
 		String type;
+		
+		private UniformFeature() {
+		}
+		
+		/**
+		 * Builds the domain of a grid feature from the metadata of one of its variables,
+		 * without reading any values. The feature field stays null.
+		 * 
+		 * @return null if the variable is not defined on a supported grid
+		 */
+		static UniformFeature fromGridVariable(VariableMetadata varMeta) {
+			UniformFeature uniFeature = new UniformFeature();
+			uniFeature.type = FeatureTypes.getName(GridFeature.class);
+			
+			Object hDomain = varMeta.getHorizontalDomain();
+			if (hDomain instanceof RectilinearGrid) {
+				uniFeature.rectgrid = (RectilinearGrid) hDomain;
+			} else if (hDomain instanceof AbstractTransformedGrid) {
+				uniFeature.projgrid = (AbstractTransformedGrid) hDomain;
+			} else {
+				return null;
+			}
+			
+			Object zDomain = varMeta.getVerticalDomain();
+			if (zDomain instanceof VerticalAxis) {
+				uniFeature.z = (VerticalAxis) zDomain;
+			} else if (zDomain != null) {
+				return null;
+			}
+			
+			Object tDomain = varMeta.getTemporalDomain();
+			if (tDomain instanceof TimeAxis) {
+				uniFeature.t = (TimeAxis) tDomain;
+			} else if (tDomain != null) {
+				return null;
+			}
+			return uniFeature;
+		}
+		
+		/**
+		 * The full t/z/y/x shape of the values of this feature.
+		 */
+		int[] getShape() {
+			return new int[] {
+				t == null ? 1 : t.size(),
+				z == null ? 1 : z.size(),
+				rectgrid != null ? rectgrid.getYAxis().size() : projgrid.getYSize(),
+				rectgrid != null ? rectgrid.getXAxis().size() : projgrid.getXSize()
+			};
+		}
+		
 		public UniformFeature(DiscreteFeature<?,?> feature) {
 			this.feature = feature;
 			this.type = FeatureTypes.getName(feature.getClass());
@@ -295,6 +360,12 @@ public class CoverageResource extends ServerResource {
 		Builder values = ImmutableMap.builder();
 		
 		String queryString = Constraint.getQueryString(subset.getCanonicalQueryParams());
+		
+		// the feature is read and the axes indices are computed once for all parameters
+		AxesIndices ind = null;
+		if (includeValues) {
+			ind = CoverageRangeResource.getAxesIndices(uniFeatureFn.get(), subset);
+		}
 
 		for (String paramId : meta.rangeMeta.getParameterIds()) {
 			if (subset.params.isPresent() && !subset.params.get().contains(paramId)) {
@@ -304,7 +375,7 @@ public class CoverageResource extends ServerResource {
 			Object rangeParam;
 			
 			if (includeValues) {
-				rangeParam = CoverageRangeResource.getRangeJson(meta.datasetId, meta.featureId, paramId, subset);
+				rangeParam = CoverageRangeResource.getRangeJson(uniFeatureFn.get(), ind, paramId);
 			} else {
 				rangeParam = rangeUrl;
 			}
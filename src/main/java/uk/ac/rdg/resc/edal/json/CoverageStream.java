@@ -0,0 +1,130 @@
+package uk.ac.rdg.resc.edal.json;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.msgpack.MessageTypeException;
+import org.msgpack.packer.Packer;
+import org.msgpack.template.AbstractTemplate;
+import org.msgpack.unpacker.Unpacker;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.json.CoverageCollectionResource.CoverageJsonBuilder;
+import uk.ac.rdg.resc.edal.json.CoverageResource.FeatureMetadata;
+
+/**
+ * The coverages or GeoJSON features of a collection page, generated lazily while being serialized.
+ *
+ * Coverages are built in batches (in parallel, see {@link CoverageCollectionResource#buildInParallel})
+ * and each batch is written and flushed before the next one is built, such that memory usage
+ * is bounded by the batch size and not by the size of the page.
+ *
+ * The first batch is built before the response is returned (see {@link #buildFirstBatch()}),
+ * such that invalid requests and unreadable features still result in an error status.
+ * If a later batch fails, the status and part of the body have already been sent,
+ * then the connection is aborted and the client receives a truncated body.
+ *
+ */
+@JsonSerialize(using = CoverageStream.JsonWriter.class)
+class CoverageStream {
+
+	interface BatchConsumer {
+		void accept(List<Object> batch) throws IOException;
+	}
+
+	private final List<FeatureMetadata> metas;
+	private final CoverageJsonBuilder builder;
+	private final int batchSize;
+	private List<Object> firstBatch;
+
+	public CoverageStream(List<FeatureMetadata> metas, CoverageJsonBuilder builder) {
+		this.metas = metas;
+		this.builder = builder;
+		// enough work for every thread a request may use, but not more
+		this.batchSize = Math.max(1, CoverageCollectionResource.PAGE_CONCURRENCY * 4);
+	}
+
+	public int size() {
+		return metas.size();
+	}
+
+	/**
+	 * Builds the first batch, to be called before the response is written.
+	 */
+	public void buildFirstBatch() throws IOException, EdalException {
+		firstBatch = CoverageCollectionResource.buildInParallel(getBatch(0), builder);
+	}
+
+	public void forEachBatch(BatchConsumer consumer) throws IOException {
+		for (int from=0; from < metas.size(); from += batchSize) {
+			List<Object> jsons;
+			if (from == 0 && firstBatch != null) {
+				jsons = firstBatch;
+				firstBatch = null;
+			} else {
+				try {
+					jsons = CoverageCollectionResource.buildInParallel(getBatch(from), builder);
+				} catch (EdalException e) {
+					// the response is already partially written, this aborts it
+					throw new IOException(e);
+				}
+			}
+			consumer.accept(jsons);
+		}
+	}
+
+	private List<FeatureMetadata> getBatch(int from) {
+		return metas.subList(from, Math.min(metas.size(), from + batchSize));
+	}
+
+	/**
+	 * Writes the coverages as JSON array and flushes after each batch.
+	 */
+	static class JsonWriter extends JsonSerializer<CoverageStream> {
+		@Override
+		public void serialize(CoverageStream coverages, JsonGenerator gen, SerializerProvider provider) throws IOException {
+			gen.writeStartArray();
+			coverages.forEachBatch(batch -> {
+				for (Object coverage : batch) {
+					provider.defaultSerializeValue(coverage, gen);
+				}
+				gen.flush();
+			});
+			gen.writeEndArray();
+		}
+	}
+
+	/**
+	 * Packs the coverages as msgpack array, see {@link MessagePackRepresentation}.
+	 */
+	static class MessagePackTemplate extends AbstractTemplate<CoverageStream> {
+		@Override
+		public void write(Packer pk, CoverageStream coverages, boolean required) throws IOException {
+			if (coverages == null) {
+				if (required) {
+					throw new MessageTypeException("Attempted to write null");
+				}
+				pk.writeNil();
+				return;
+			}
+			pk.writeArrayBegin(coverages.size());
+			coverages.forEachBatch(batch -> {
+				for (Object coverage : batch) {
+					pk.write(coverage);
+				}
+				pk.flush();
+			});
+			pk.writeArrayEnd();
+		}
+
+		@Override
+		public CoverageStream read(Unpacker u, CoverageStream to, boolean required) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package uk.ac.rdg.resc.edal.json;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+
+import javax.imageio.ImageIO;
+
+import org.restlet.data.Form;
+import org.restlet.data.MediaType;
+import org.restlet.data.Reference;
+import org.restlet.data.Status;
+import org.restlet.representation.ByteArrayRepresentation;
+import org.restlet.representation.Representation;
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import uk.ac.rdg.resc.edal.dataset.Dataset;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.feature.GridFeature;
+import uk.ac.rdg.resc.edal.graphics.style.ColourScheme;
+import uk.ac.rdg.resc.edal.graphics.style.ScaleRange;
+import uk.ac.rdg.resc.edal.graphics.style.SegmentColourScheme;
+import uk.ac.rdg.resc.edal.graphics.utils.ColourPalette;
+import uk.ac.rdg.resc.edal.graphics.utils.GraphicsUtils;
+import uk.ac.rdg.resc.edal.grid.ReferenceableAxis;
+import uk.ac.rdg.resc.edal.json.CoverageRangeResource.AxesIndices;
+import uk.ac.rdg.resc.edal.json.CoverageResource.FeatureMetadata;
+import uk.ac.rdg.resc.edal.json.CoverageResource.UniformFeature;
+import uk.ac.rdg.resc.edal.json.RangeMetadata.Statistics;
+import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.metadata.Parameter.Category;
+import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
+import uk.ac.rdg.resc.edal.util.Array;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+
+/**
+ * A parameter of a grid coverage rendered as PNG tiles in the Web Mercator tiling scheme,
+ * such that map clients don't have to load the whole range to display it.
+ *
+ * Only the part of the grid covered by a tile is read, see {@link GridSubsetReader}.
+ * The time and vertical slice can be chosen with the usual subset query parameters,
+ * otherwise the first one is used. The colour scale range is given as
+ * colorscalerange=min,max and defaults to the approximate value range of the parameter,
+ * which is sampled with bounded reads as well (see {@link RangeMetadata}).
+ * The palette is given as palette=name. Rendered tiles are cached.
+ *
+ * NOTE: supports rectilinear lon-lat grids of datasets with bounded reads only for now
+ */
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class CoverageTilesResource extends ServerResource {
+
+	static final int TILE_SIZE = 256;
+
+	/**
+	 * Maximum size of all cached rendered tiles in MiB,
+	 * can be set with the system property edal.json.imageTileCacheSize.
+	 */
+	static final int IMAGE_TILE_CACHE_SIZE = Integer.getInteger("edal.json.imageTileCacheSize", 128);
+
+	private static final Color TRANSPARENT = new Color(0, 0, 0, 0);
+
+	private static final Cache<String,byte[]> tileCache = CacheBuilder.newBuilder()
+			.maximumWeight(IMAGE_TILE_CACHE_SIZE * 1024L * 1024L)
+			.weigher((String key, byte[] tile) -> tile.length)
+			.build();
+
+	@Get("png")
+	public Representation png() throws IOException, EdalException {
+		String datasetId = Reference.decode(getAttribute("datasetId"));
+		String coverageId = Reference.decode(getAttribute("coverageId"));
+		String paramId = Reference.decode(getAttribute("paramId"));
+		int z, x, y;
+		try {
+			z = Integer.parseInt(getAttribute("z"));
+			x = Integer.parseInt(getAttribute("x"));
+			// the extension is normally removed by the tunnel service already
+			y = Integer.parseInt(getAttribute("y").replace(".png", ""));
+			if (z < 0 || z > OutlineTilesResource.MAX_ZOOM || x < 0 || x >= 1 << z || y < 0 || y >= 1 << z) {
+				throw new IllegalArgumentException("Tile " + z + "/" + x + "/" + y + " does not exist");
+			}
+		} catch (IllegalArgumentException e) {
+			setStatus(Status.CLIENT_ERROR_NOT_FOUND);
+			return App.getErrorRepresentation(e);
+		}
+
+		Form query = getQuery();
+		// cached tiles of an older version of the dataset file are never hit again
+		String key = datasetId + "@" + MetadataStore.getSourceVersion(datasetId) + "/" + coverageId + "/" + paramId +
+				"/" + z + "/" + x + "/" + y + "?" + query.getQueryString();
+		byte[] tile;
+		try {
+			tile = tileCache.get(key, () -> renderTile(datasetId, coverageId, paramId, z, x, y, query));
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			if (e.getCause() instanceof IllegalArgumentException) {
+				setStatus(Status.CLIENT_ERROR_NOT_FOUND);
+				return App.getErrorRepresentation((IllegalArgumentException) e.getCause());
+			}
+			Throwables.propagateIfPossible(e.getCause(), IOException.class, EdalException.class);
+			throw new RuntimeException(e.getCause());
+		}
+		return new ByteArrayRepresentation(tile, MediaType.IMAGE_PNG);
+	}
+
+	static byte[] renderTile(String datasetId, String coverageId, String paramId, int z, int x, int y, Form query)
+			throws IOException, EdalException {
+		FeatureMetadata meta = DatasetResource.getDatasetMetadata(datasetId).getFeatureMetadata(coverageId);
+		if (meta == null || !GridFeature.class.isAssignableFrom(meta.type)) {
+			throw new IllegalArgumentException("Only grid coverages can be rendered as tiles");
+		}
+		Parameter param = meta.rangeMeta.getParameter(paramId);
+		if (param == null) {
+			throw new IllegalArgumentException("Parameter " + paramId + " does not exist");
+		}
+		Dataset dataset = Utils.getDataset(datasetId);
+		VariableMetadata varMeta = dataset.getVariableMetadata(paramId);
+		if (!GridSubsetReader.isVariableOfFeature(varMeta, coverageId)) {
+			throw new IllegalArgumentException("Parameter " + paramId + " is not a grid variable of the coverage");
+		}
+		UniformFeature uniFeature = UniformFeature.fromGridVariable(varMeta);
+		if (uniFeature == null || uniFeature.rectgrid == null ||
+				!GISUtils.isWgs84LonLat(uniFeature.rectgrid.getCoordinateReferenceSystem())) {
+			throw new IllegalArgumentException("Only rectilinear lon-lat grids can be rendered as tiles");
+		}
+		// a tile must never read the whole feature, neither for its values nor for the default colour scale range
+		if (!GridSubsetReader.supportsBoundedReads(dataset)) {
+			throw new IllegalArgumentException("Coverages of this dataset cannot be rendered as tiles");
+		}
+
+		int n = 1 << z;
+		double west = OutlineTilesResource.toLon(x, n);
+		double east = OutlineTilesResource.toLon(x + 1, n);
+		double north = OutlineTilesResource.toLat(y, n);
+		double south = OutlineTilesResource.toLat(y + 1, n);
+
+		// restrict the subset to the tile, keeping any time or vertical subset of the request
+		Form subsetQuery = new Form(query.getQueryString());
+		subsetQuery.set("subsetBbox", west + "," + south + "," + east + "," + north);
+		// tiles are always rendered from the full resolution
+		subsetQuery.removeAll("subsetStride");
+		SubsetConstraint subset = new SubsetConstraint(subsetQuery);
+		AxesIndices ind = CoverageRangeResource.getAxesIndices(uniFeature, subset);
+		if (ind.x.isEmpty() || ind.y.isEmpty() || ind.t.isEmpty() || ind.z.isEmpty()) {
+			return encode(new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB));
+		}
+		ind.t = IndexRange.single(ind.t.getFirst());
+		ind.z = IndexRange.single(ind.z.getFirst());
+
+		Array<Number> vals = GridSubsetReader.read(dataset, paramId, ind, uniFeature.getShape());
+
+		ReferenceableAxis<Double> xAxis = uniFeature.rectgrid.getXAxis();
+		ReferenceableAxis<Double> yAxis = uniFeature.rectgrid.getYAxis();
+		// the grid is separable, therefore each column and row maps to a single axis index
+		int[] cols = new int[TILE_SIZE];
+		for (int i=0; i < TILE_SIZE; i++) {
+			double lon = OutlineTilesResource.toLon(x + (i + 0.5) / TILE_SIZE, n);
+			cols[i] = findIndex(xAxis, lon, ind.x);
+		}
+		int[] rows = new int[TILE_SIZE];
+		for (int j=0; j < TILE_SIZE; j++) {
+			double lat = OutlineTilesResource.toLat(y + (j + 0.5) / TILE_SIZE, n);
+			rows[j] = findIndex(yAxis, lat, ind.y);
+		}
+
+		ColourScheme colourScheme = getColourScheme(meta, param, query);
+		int t = ind.t.getFirst();
+		int zi = ind.z.getFirst();
+		BufferedImage image = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+		for (int j=0; j < TILE_SIZE; j++) {
+			if (rows[j] < 0) continue;
+			for (int i=0; i < TILE_SIZE; i++) {
+				if (cols[i] < 0) continue;
+				Number val = vals.get(t, zi, rows[j], cols[i]);
+				if (val != null) {
+					image.setRGB(i, j, getColour(param, colourScheme, val).getRGB());
+				}
+			}
+		}
+		return encode(image);
+	}
+
+	/**
+	 * @return -1 if the position is outside of the axis or of the read indices
+	 */
+	private static int findIndex(ReferenceableAxis<Double> ax, double pos, IndexRange read) {
+		int idx = ax.findIndexOf(pos);
+		if (idx < read.getFirst() || idx > read.getLast()) {
+			return -1;
+		}
+		return idx;
+	}
+
+	private static ColourScheme getColourScheme(FeatureMetadata meta, Parameter param, Form query) {
+		float min, max;
+		String range = query.getFirstValue("colorscalerange");
+		if (range != null) {
+			String[] parts = range.split(",");
+			if (parts.length != 2) {
+				throw new IllegalArgumentException("colorscalerange must be min,max");
+			}
+			min = Float.parseFloat(parts[0]);
+			max = Float.parseFloat(parts[1]);
+		} else {
+			// the parameter is a grid variable of a dataset with bounded reads, checked by renderTile,
+			// so the statistics are stored ones or sampled with bounded strided reads
+			Statistics stats = meta.rangeMeta.getStatistics(param, true);
+			min = (float) stats.min;
+			max = (float) stats.max;
+		}
+		if (Float.isNaN(min) || Float.isNaN(max)) {
+			// all values missing, nothing will be drawn
+			min = 0;
+			max = 1;
+		}
+		String palette = query.getFirstValue("palette");
+		if (palette == null) {
+			palette = ColourPalette.DEFAULT_PALETTE_NAME;
+		}
+		return new SegmentColourScheme(new ScaleRange(min, max, false), null, null, TRANSPARENT, palette, 250);
+	}
+
+	private static Color getColour(Parameter param, ColourScheme colourScheme, Number val) {
+		if (param.getCategories() != null) {
+			for (Entry<Integer,Category> entry : param.getCategories().entrySet()) {
+				if (entry.getKey() == val.intValue() && entry.getValue().getColour() != null) {
+					return GraphicsUtils.parseColour(entry.getValue().getColour());
+				}
+			}
+		}
+		return colourScheme.getColor(val);
+	}
+
+	private static byte[] encode(BufferedImage image) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", out);
+		return out.toByteArray();
+	}
+}
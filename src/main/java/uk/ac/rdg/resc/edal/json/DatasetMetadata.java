@@ -1,5 +1,6 @@
 package uk.ac.rdg.resc.edal.json;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -7,9 +8,12 @@ import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
 
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 import uk.ac.rdg.resc.edal.dataset.Dataset;
 import uk.ac.rdg.resc.edal.feature.DiscreteFeature;
@@ -24,6 +28,9 @@ class DatasetMetadata {
 	private final Map<Class<?>, Integer> featureCounts = new HashMap<>();
 	private final Map<Class<?>, Set<Parameter>> featureParams = new HashMap<>();
 	private DomainMetadata domainMetadata;
+	private final Supplier<FeatureIndex> featureIndex = Suppliers.memoize(() -> new FeatureIndex(featureMetadata.values()));
+	// the root URI is part of the outlines, usually there is only one
+	private final Cache<String,OutlineCache> outlines = CacheBuilder.newBuilder().maximumSize(4).build();
 		
 	public DatasetMetadata(String datasetId) {
 		this.datasetId = datasetId;
@@ -31,16 +38,28 @@ class DatasetMetadata {
 	}
 	
 	private void extractMetadata() {
-		Dataset dataset = Utils.getDataset(datasetId);
-		
-		for (String featureId : dataset.getFeatureIds()) {
-			Feature<?> feature = dataset.readFeature(featureId);
-			if (!(feature instanceof DiscreteFeature)) {
-				continue;
+		List<FeatureMetadata> metas = MetadataStore.read(datasetId);
+		if (metas == null) {
+			metas = new ArrayList<>();
+			// also runs outside of requests, during the warm-up
+			Utils.retainDataset(datasetId);
+			try {
+				Dataset dataset = Utils.getDataset(datasetId);
+				for (String featureId : dataset.getFeatureIds()) {
+					Feature<?> feature = dataset.readFeature(featureId);
+					if (!(feature instanceof DiscreteFeature)) {
+						continue;
+					}
+					metas.add(new FeatureMetadata(datasetId, feature));
+				}
+			} finally {
+				Utils.releaseDataset(datasetId);
 			}
-			FeatureMetadata meta = new FeatureMetadata(
-					datasetId, feature);
-			featureMetadata.put(featureId, meta);
+			MetadataStore.write(datasetId, metas);
+		}
+		
+		for (FeatureMetadata meta : metas) {
+			featureMetadata.put(meta.featureId, meta);
 			
 			int count = featureCounts.getOrDefault(meta.type, 0);
 			featureCounts.put(meta.type, count+1);
@@ -72,6 +91,24 @@ class DatasetMetadata {
 		return featureParams.get(type);
 	}
 	
+	/**
+	 * The spatial-temporal index of all features, built on first access.
+	 */
+	public FeatureIndex getFeatureIndex() {
+		return featureIndex.get();
+	}
+	
+	/**
+	 * The cached GeoJSON outlines of all features for the given root URI.
+	 */
+	OutlineCache getOutlines(String rootUri) {
+		try {
+			return outlines.get(rootUri, () -> new OutlineCache(this, rootUri));
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+	
 	public DomainMetadata getDomainMetadata() {
 		return domainMetadata;
 	}
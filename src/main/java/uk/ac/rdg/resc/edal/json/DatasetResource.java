@@ -1,10 +1,12 @@
 package uk.ac.rdg.resc.edal.json;
 
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.joda.time.DateTime;
 import org.restlet.data.Reference;
@@ -14,9 +16,15 @@ import org.restlet.resource.Get;
 import org.restlet.resource.ServerResource;
 
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
 import uk.ac.rdg.resc.edal.dataset.Dataset;
 import uk.ac.rdg.resc.edal.domain.Extent;
@@ -26,8 +34,17 @@ import uk.ac.rdg.resc.edal.metadata.Parameter;
 
 public class DatasetResource extends ServerResource {
 	
+	/**
+	 * Number of threads used to pre-compute the metadata of all datasets at startup,
+	 * can be set with the system property edal.json.warmUpThreads. 0 disables the warm-up.
+	 */
+	static final int WARM_UP_THREADS = Integer.getInteger("edal.json.warmUpThreads", 0);
+	
 	// cache with datasetId as key
-	private static Map<String,DatasetMetadata> datasetMetadataCache = new HashMap<>();
+	// concurrent requests for the same dataset wait for a single metadata extraction
+	private static final LoadingCache<String,DatasetMetadata> datasetMetadataCache = CacheBuilder.newBuilder()
+			.recordStats()
+			.build(CacheLoader.from(DatasetMetadata::new));
 	
 	@SuppressWarnings({ "unchecked", "rawtypes" })
 	public static Builder getDatasetJson(String datasetId, String rootUri) throws IOException {
@@ -75,11 +92,11 @@ public class DatasetResource extends ServerResource {
 					"accessURL", datasetUrl + "/coverages.covjson",
 					"mediaType", "application/prs.coverage+json"
 					),
-			/*ImmutableMap.of(
+			ImmutableMap.of(
 					"title", "Coverage data",
 					"accessURL", datasetUrl + "/coverages.covcbor",
 					"mediaType", "application/prs.coverage+cbor"
-					),*/
+					),
 			ImmutableMap.of(
 					"title", "Coverage outlines",
 					"accessURL", datasetUrl + "/outlines.geojson",
@@ -120,13 +137,42 @@ public class DatasetResource extends ServerResource {
 	 * cache
 	 */
 	public static DatasetMetadata getDatasetMetadata(String datasetId) throws IOException, EdalException {
-		DatasetMetadata datasetMeta = DatasetResource.datasetMetadataCache.get(datasetId);
-		if (datasetMeta == null) {
-			datasetMeta = new DatasetMetadata(datasetId);
-			DatasetResource.datasetMetadataCache.put(datasetId, datasetMeta);
+		try (Metrics.Timer timer = Metrics.time(Metrics.Phase.METADATA)) {
+			return datasetMetadataCache.get(datasetId);
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			Throwables.propagateIfPossible(e.getCause(), IOException.class, EdalException.class);
+			throw new RuntimeException(e.getCause());
 		}
-		return datasetMeta;
 	}
-
+	
+	/**
+	 * Hit, miss and load time statistics of the metadata cache.
+	 */
+	static CacheStats getMetadataCacheStats() {
+		return datasetMetadataCache.stats();
+	}
+	
+	/**
+	 * Extracts the metadata of all datasets in the background on a bounded pool
+	 * such that the first requests after startup don't have to wait for it.
+	 */
+	public static void warmUpMetadataCache(int threads) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r, "metadata-warm-up");
+			thread.setDaemon(true);
+			return thread;
+		});
+		for (String datasetId : Utils.getDatasetIds()) {
+			executor.submit(() -> {
+				try {
+					getDatasetMetadata(datasetId);
+				} catch (Exception e) {
+					System.err.println("metadata warm-up failed for " + datasetId);
+					e.printStackTrace();
+				}
+			});
+		}
+		executor.shutdown();
+	}
 
 }
\ No newline at end of file
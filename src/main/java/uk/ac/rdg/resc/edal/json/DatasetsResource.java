@@ -1,14 +1,10 @@
 package uk.ac.rdg.resc.edal.json;
 
-import java.io.File;
 import java.io.IOException;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
-import org.apache.commons.io.Charsets;
-import org.apache.commons.io.IOUtils;
 import org.joda.time.DateTime;
 import org.restlet.data.Reference;
 import org.restlet.ext.jackson.JacksonRepresentation;
@@ -38,14 +34,7 @@ public class DatasetsResource extends ServerResource {
 		
 		List datasetsJson = new ArrayList();
 		
-		List<String> datasetIds = IOUtils.readLines(DatasetsResource.class.getClassLoader()
-		        .getResourceAsStream(Utils.DATASETS_FOLDER.substring(1)), Charsets.UTF_8);
-		for (String datasetId : datasetIds) {
-			URL resource = Utils.class.getResource(Utils.DATASETS_FOLDER + datasetId);
-			if (new File(resource.getFile()).isDirectory()) {
-				continue;
-			}
-			
+		for (String datasetId : Utils.getDatasetIds()) {
 			DatasetMetadata meta = DatasetResource.getDatasetMetadata(datasetId);
 			DomainMetadata domainMeta = meta.getDomainMetadata();
 			
@@ -37,6 +37,18 @@ public class DomainMetadata {
 		extractMetadata(feature);
 	}
 	
+	/**
+	 * Restores previously extracted metadata, see {@link MetadataStore}.
+	 */
+	DomainMetadata(String type, BoundingBox bbox, Extent<DateTime> timeExtent,
+			Extent<Double> verticalExtent, VerticalCrs verticalCrs) {
+		this.type = type;
+		this.bbox = bbox;
+		this.timeExtent = timeExtent;
+		this.verticalExtent = verticalExtent;
+		this.verticalCrs = verticalCrs;
+	}
+	
 	/**
 	 * Merge all metadatas into a new combined metadata object.
 	 * This only works when the CRS of each axis is identical for all given objects.
@@ -0,0 +1,153 @@
+package uk.ac.rdg.resc.edal.json;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+
+import org.restlet.Request;
+import org.restlet.data.Encoding;
+import org.restlet.data.Form;
+import org.restlet.data.MediaType;
+import org.restlet.data.Parameter;
+import org.restlet.data.Preference;
+import org.restlet.data.Reference;
+import org.restlet.data.Tag;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Computes strong entity tags from the request alone, before any resource is handled,
+ * such that conditional requests can be answered without reading features.
+ *
+ * A tag covers the root URI and resource path, the canonical filter and subset constraints and
+ * remaining query parameters, the accepted media types (with profile) and encodings, and the version
+ * (size and modification time of the source file) of the datasets the response is derived from.
+ * The raw Accept and Accept-Encoding headers and the original path (with extension) are covered as well,
+ * as the selected variant, including whether JSON is indented (see {@link App#acceptsJSON}), depends on them.
+ * Finally, the build of the server is covered, as new versions may change the output formats.
+ *
+ */
+final class EntityTags {
+
+	// changes of the server code change the responses as well
+	private static final String SERVER_VERSION = loadServerVersion();
+
+	private EntityTags() {
+	}
+
+	/**
+	 * @return null if the version of a dataset cannot be determined or the query is invalid
+	 */
+	static Tag compute(Request request) {
+		Object datasetAttr = request.getAttributes().get("datasetId");
+		List<String> datasetIds;
+		if (datasetAttr != null) {
+			datasetIds = Collections.singletonList(Reference.decode(datasetAttr.toString()));
+		} else {
+			try {
+				datasetIds = Utils.getDatasetIds();
+			} catch (IOException e) {
+				return null;
+			}
+			Collections.sort(datasetIds);
+		}
+
+		Hasher hasher = Hashing.murmur3_128().newHasher();
+		putString(hasher, SERVER_VERSION);
+		for (String datasetId : datasetIds) {
+			File source = MetadataStore.getSourceFile(datasetId);
+			if (source == null) {
+				return null;
+			}
+			putString(hasher, datasetId);
+			hasher.putLong(source.length());
+			hasher.putLong(source.lastModified());
+		}
+
+		// the root URI is part of all ids and links
+		putString(hasher, String.valueOf(request.getRootRef()));
+		putString(hasher, request.getResourceRef().getPath());
+		putString(hasher, request.getOriginalRef().getPath());
+		putString(hasher, String.valueOf(request.getHeaders().getFirstValue("Accept", true)));
+		putString(hasher, String.valueOf(request.getHeaders().getFirstValue("Accept-Encoding", true)));
+		try {
+			putString(hasher, getCanonicalQueryString(request.getResourceRef().getQueryAsForm()));
+		} catch (IllegalArgumentException e) {
+			// answered with an error by the resource
+			return null;
+		}
+		for (Preference<MediaType> pref : request.getClientInfo().getAcceptedMediaTypes()) {
+			// parameters like the CoverageJSON profile select the embedding
+			putString(hasher, pref.getMetadata().getName());
+			putString(hasher, pref.getMetadata().getParameters().toString());
+			hasher.putFloat(pref.getQuality());
+		}
+		for (Preference<Encoding> pref : request.getClientInfo().getAcceptedEncodings()) {
+			putString(hasher, pref.getMetadata().getName());
+			hasher.putFloat(pref.getQuality());
+		}
+		return new Tag(hasher.hash().toString(), false);
+	}
+
+	/**
+	 * Filter and subset constraints in canonical form, followed by all other parameters sorted by name and value.
+	 */
+	private static String getCanonicalQueryString(Form query) {
+		SubsetConstraint subset = new SubsetConstraint(query);
+		FilterConstraint filter = new FilterConstraint(query);
+		List<Parameter> rest = new ArrayList<>();
+		Form constraintParams = new Form();
+		constraintParams.addAll(filter.getCanonicalQueryParams());
+		constraintParams.addAll(subset.getCanonicalQueryParams());
+		for (Parameter param : query) {
+			if (!isConstraintParam(param.getName())) {
+				rest.add(param);
+			}
+		}
+		rest.sort(Comparator.comparing(Parameter::getName).thenComparing(p -> String.valueOf(p.getValue())));
+		return Constraint.getQueryString(constraintParams, new Form(rest));
+	}
+
+	private static boolean isConstraintParam(String name) {
+		switch (name) {
+		case Constraint.TimeStart: case Constraint.TimeEnd: case Constraint.Bbox:
+		case Constraint.VerticalStart: case Constraint.VerticalEnd: case Constraint.Params:
+			return true;
+		default:
+			return name.startsWith("subset");
+		}
+	}
+
+	/**
+	 * Reads the version and build time written into edal-json.properties by the build.
+	 * Without them, e.g. when running from an IDE, the startup time is used instead,
+	 * such that tags never survive a restart with possibly changed code.
+	 */
+	private static String loadServerVersion() {
+		Properties props = new Properties();
+		try (InputStream in = EntityTags.class.getResourceAsStream("/edal-json.properties")) {
+			if (in != null) {
+				props.load(in);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		String version = props.getProperty("version", "") + " " + props.getProperty("build", "");
+		if (version.trim().isEmpty() || version.contains("${")) {
+			return "started " + System.currentTimeMillis();
+		}
+		return version;
+	}
+
+	private static void putString(Hasher hasher, String s) {
+		hasher.putInt(s.length());
+		hasher.putString(s, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,358 @@
+package uk.ac.rdg.resc.edal.json;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.opengis.metadata.extent.GeographicBoundingBox;
+
+import uk.ac.rdg.resc.edal.domain.Extent;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.json.CoverageResource.FeatureMetadata;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+
+/**
+ * Index over the domain metadata of all features of a dataset which answers
+ * bounding box, time and vertical filter queries without visiting every feature.
+ *
+ * Features are identified by their ordinal in the (sorted) feature id order of
+ * {@link DatasetMetadata}, and query results are returned as a {@link BitSet}
+ * of ordinals, such that iterating over the result keeps the paging order.
+ *
+ * Bounding boxes are kept in a packed R-tree, sorted along a Hilbert curve.
+ * Boxes crossing the dateline are split into two boxes within [-180,180].
+ * Time and vertical extents are kept in arrays sorted by their lower bound.
+ *
+ */
+final class FeatureIndex {
+
+	private final String[] featureIds;
+	private final BboxTree bboxTree;
+	private final IntervalIndex timeIndex;
+	private final IntervalIndex verticalIndex;
+
+	/**
+	 * @param metas feature metadata in feature id order
+	 */
+	FeatureIndex(Collection<FeatureMetadata> metas) {
+		int n = metas.size();
+		featureIds = new String[n];
+		List<double[]> boxes = new ArrayList<>();
+		boolean allWgs84 = true;
+		double[] timeLow = new double[n], timeHigh = new double[n];
+		double[] verticalLow = new double[n], verticalHigh = new double[n];
+		Arrays.fill(timeLow, Double.NaN);
+		Arrays.fill(verticalLow, Double.NaN);
+
+		int i = 0;
+		for (FeatureMetadata meta : metas) {
+			featureIds[i] = meta.featureId;
+			DomainMetadata domainMeta = meta.domainMeta;
+
+			BoundingBox bb = domainMeta.getBoundingBox();
+			if (allWgs84 && GISUtils.isWgs84LonLat(bb.getCoordinateReferenceSystem())) {
+				for (GeographicBoundingBox box : new DatelineBoundingBox(bb).getSplitBoxes()) {
+					boxes.add(new double[] { box.getWestBoundLongitude(), box.getSouthBoundLatitude(),
+							box.getEastBoundLongitude(), box.getNorthBoundLatitude(), i });
+				}
+			} else {
+				allWgs84 = false;
+			}
+
+			Extent<DateTime> t = domainMeta.getTimeExtent();
+			if (t != null) {
+				timeLow[i] = t.getLow().getMillis();
+				timeHigh[i] = t.getHigh().getMillis();
+			}
+			Extent<Double> v = domainMeta.getVerticalExtent();
+			if (v != null) {
+				verticalLow[i] = v.getLow();
+				verticalHigh[i] = v.getHigh();
+			}
+			i++;
+		}
+		bboxTree = allWgs84 ? new BboxTree(boxes) : null;
+		timeIndex = new IntervalIndex(timeLow, timeHigh);
+		verticalIndex = new IntervalIndex(verticalLow, verticalHigh);
+	}
+
+	int size() {
+		return featureIds.length;
+	}
+
+	String getFeatureId(int ordinal) {
+		return featureIds[ordinal];
+	}
+	
+	/**
+	 * @return the ordinal of the feature, or (-(insertion point) - 1) if there is no such feature
+	 */
+	int getOrdinal(String featureId) {
+		return Arrays.binarySearch(featureIds, featureId);
+	}
+
+	/**
+	 * Returns the ordinals of all features matching the bounding box, time and
+	 * vertical constraints of the filter. Other constraints are not applied.
+	 *
+	 * Time filtering rules:
+	 * 1. Feature has no time information
+	 * 1a. Time filter is given -> skip feature
+	 * 1b. Time filter not given -> include
+	 * 2. Feature has time information
+	 * 2a. Time filter is given -> check intersection
+	 * 2b. Time filter not given -> include
+	 *
+	 * Vertical filtering rules:
+	 * 1. Feature has no vertical information
+	 * 1a. Vertical filter is given -> skip feature
+	 * 1b. Vertical filter not given -> include
+	 * 2. Feature has vertical information
+	 * 2a. Vertical filter is given -> check intersection
+	 * 2b. Vertical filter not given -> include
+	 */
+	BitSet query(Constraint filter) {
+		BitSet result = new BitSet(size());
+		result.set(0, size());
+
+		if (filter.bbox.isPresent()) {
+			if (bboxTree == null) {
+				throw new RuntimeException("only WGS84 supported currently");
+			}
+			BitSet matches = new BitSet(size());
+			for (GeographicBoundingBox box : filter.bbox.get().getSplitBoxes()) {
+				bboxTree.query(box.getWestBoundLongitude(), box.getSouthBoundLatitude(),
+						box.getEastBoundLongitude(), box.getNorthBoundLatitude(), matches);
+			}
+			result.and(matches);
+		}
+
+		if (filter.timeExtent.getLow() != null || filter.timeExtent.getHigh() != null) {
+			DateTime low = filter.timeExtent.getLow();
+			DateTime high = filter.timeExtent.getHigh();
+			BitSet matches = new BitSet(size());
+			timeIndex.query(low == null ? Double.NEGATIVE_INFINITY : low.getMillis(),
+					high == null ? Double.POSITIVE_INFINITY : high.getMillis(), matches);
+			result.and(matches);
+		}
+
+		if (filter.verticalExtent.getLow() != null || filter.verticalExtent.getHigh() != null) {
+			Double low = filter.verticalExtent.getLow();
+			Double high = filter.verticalExtent.getHigh();
+			BitSet matches = new BitSet(size());
+			verticalIndex.query(low == null ? Double.NEGATIVE_INFINITY : low,
+					high == null ? Double.POSITIVE_INFINITY : high, matches);
+			result.and(matches);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the ordinals of all features whose bounding box intersects the given
+	 * lon/lat box, which must not cross the dateline.
+	 */
+	BitSet query(double west, double south, double east, double north) {
+		if (bboxTree == null) {
+			throw new RuntimeException("only WGS84 supported currently");
+		}
+		BitSet matches = new BitSet(size());
+		bboxTree.query(west, south, east, north, matches);
+		return matches;
+	}
+
+	/**
+	 * Closed intervals sorted by their lower bound.
+	 *
+	 * An interval [lo,hi] intersects the query [qlo,qhi] if lo <= qhi and hi >= qlo.
+	 * Since no interval is longer than the longest one, all candidates have a lower bound
+	 * within [qlo - maxLength, qhi], which is found by binary search.
+	 */
+	private static class IntervalIndex {
+		private final double[] low;
+		private final double[] high;
+		private final int[] ordinals;
+		private final double maxLength;
+
+		/**
+		 * @param low lower bounds by ordinal, NaN if the feature has no interval
+		 */
+		IntervalIndex(double[] low, double[] high) {
+			Integer[] order = new Integer[low.length];
+			int n = 0;
+			double maxLength = 0;
+			for (int i=0; i < low.length; i++) {
+				if (!Double.isNaN(low[i])) {
+					order[n++] = i;
+					maxLength = Math.max(maxLength, high[i] - low[i]);
+				}
+			}
+			Arrays.sort(order, 0, n, Comparator.comparingDouble(i -> low[i]));
+			this.low = new double[n];
+			this.high = new double[n];
+			this.ordinals = new int[n];
+			for (int i=0; i < n; i++) {
+				this.low[i] = low[order[i]];
+				this.high[i] = high[order[i]];
+				this.ordinals[i] = order[i];
+			}
+			this.maxLength = maxLength;
+		}
+
+		void query(double queryLow, double queryHigh, BitSet out) {
+			int start = firstGreaterOrEqual(queryLow - maxLength);
+			int end = firstGreater(queryHigh);
+			for (int i=start; i < end; i++) {
+				if (high[i] >= queryLow) {
+					out.set(ordinals[i]);
+				}
+			}
+		}
+
+		private int firstGreaterOrEqual(double val) {
+			int lo = 0, hi = low.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (low[mid] < val) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+		private int firstGreater(double val) {
+			int lo = 0, hi = low.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (low[mid] <= val) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+	}
+
+	/**
+	 * Static packed R-tree of lon/lat boxes which don't cross the dateline.
+	 *
+	 * Boxes are sorted by the Hilbert curve position of their centre and grouped
+	 * into nodes of {@link #NODE_SIZE} children, bottom-up, until a single root remains.
+	 * Each level is stored as a flat array of west, south, east, north values.
+	 */
+	private static class BboxTree {
+		private static final int NODE_SIZE = 16;
+		private static final int HILBERT_ORDER = 15;
+
+		// levels.get(0) holds the boxes themselves
+		private final List<double[]> levels = new ArrayList<>();
+		private final int[] ordinals;
+
+		/**
+		 * @param boxes west, south, east, north, ordinal
+		 */
+		BboxTree(List<double[]> boxes) {
+			long[] keys = new long[boxes.size()];
+			for (int i=0; i < keys.length; i++) {
+				double[] b = boxes.get(i);
+				long h = hilbert((b[0] + b[2]) / 2, (b[1] + b[3]) / 2);
+				// sort by Hilbert value, keep the box index in the lower bits
+				keys[i] = (h << 32) | i;
+			}
+			Arrays.sort(keys);
+
+			double[] leaves = new double[keys.length * 4];
+			ordinals = new int[keys.length];
+			for (int i=0; i < keys.length; i++) {
+				double[] b = boxes.get((int) keys[i]);
+				System.arraycopy(b, 0, leaves, i*4, 4);
+				ordinals[i] = (int) b[4];
+			}
+			levels.add(leaves);
+
+			double[] level = leaves;
+			while (level.length > 4) {
+				int count = level.length / 4;
+				double[] parents = new double[((count + NODE_SIZE - 1) / NODE_SIZE) * 4];
+				for (int p=0; p < parents.length / 4; p++) {
+					double w = Double.POSITIVE_INFINITY, s = Double.POSITIVE_INFINITY;
+					double e = Double.NEGATIVE_INFINITY, n = Double.NEGATIVE_INFINITY;
+					for (int c = p * NODE_SIZE; c < Math.min(count, (p+1) * NODE_SIZE); c++) {
+						w = Math.min(w, level[c*4]);
+						s = Math.min(s, level[c*4+1]);
+						e = Math.max(e, level[c*4+2]);
+						n = Math.max(n, level[c*4+3]);
+					}
+					parents[p*4] = w;
+					parents[p*4+1] = s;
+					parents[p*4+2] = e;
+					parents[p*4+3] = n;
+				}
+				levels.add(parents);
+				level = parents;
+			}
+		}
+
+		/**
+		 * Sets the ordinals of all boxes intersecting the given box, using the
+		 * same strict comparison as {@link DatelineBoundingBox#intersects(GeographicBoundingBox)}.
+		 */
+		void query(double west, double south, double east, double north, BitSet out) {
+			if (ordinals.length == 0) {
+				return;
+			}
+			query(levels.size() - 1, 0, west, south, east, north, out);
+		}
+
+		private void query(int depth, int node, double west, double south, double east, double north, BitSet out) {
+			double[] level = levels.get(depth);
+			if (depth == 0) {
+				if (level[node*4] < east && level[node*4+2] > west &&
+					level[node*4+1] < north && level[node*4+3] > south) {
+					out.set(ordinals[node]);
+				}
+				return;
+			}
+			if (level[node*4] > east || level[node*4+2] < west ||
+				level[node*4+1] > north || level[node*4+3] < south) {
+				return;
+			}
+			int childCount = levels.get(depth-1).length / 4;
+			for (int c = node * NODE_SIZE; c < Math.min(childCount, (node+1) * NODE_SIZE); c++) {
+				query(depth-1, c, west, south, east, north, out);
+			}
+		}
+
+		/**
+		 * Position of a lon/lat point on a Hilbert curve over [-180,180]x[-90,90].
+		 */
+		private static long hilbert(double lon, double lat) {
+			int side = 1 << HILBERT_ORDER;
+			int x = (int) Math.min(side - 1, Math.max(0, (lon + 180) / 360 * side));
+			int y = (int) Math.min(side - 1, Math.max(0, (lat + 90) / 180 * side));
+			long d = 0;
+			for (int s = side / 2; s > 0; s /= 2) {
+				int rx = (x & s) > 0 ? 1 : 0;
+				int ry = (y & s) > 0 ? 1 : 0;
+				d += (long) s * s * ((3 * rx) ^ ry);
+				// rotate the quadrant
+				if (ry == 0) {
+					if (rx == 1) {
+						x = side - 1 - x;
+						y = side - 1 - y;
+					}
+					int tmp = x;
+					x = y;
+					y = tmp;
+				}
+			}
+			return d;
+		}
+	}
+}
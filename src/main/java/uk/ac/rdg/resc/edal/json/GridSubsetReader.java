@@ -0,0 +1,182 @@
+package uk.ac.rdg.resc.edal.json;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Optional;
+
+import uk.ac.rdg.resc.edal.dataset.Dataset;
+import uk.ac.rdg.resc.edal.dataset.GridDataSource;
+import uk.ac.rdg.resc.edal.json.CoverageRangeResource.AxesIndices;
+import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
+import uk.ac.rdg.resc.edal.util.Array4D;
+
+/**
+ * Reads only the index-bounded part of a gridded variable from disk,
+ * instead of reading the whole feature with {@link Dataset#readFeature(String)}
+ * and subsetting afterwards.
+ *
+ * EDAL does not expose bounded reads publicly, but every gridded dataset
+ * opens a {@link GridDataSource} internally which supports them. If a dataset
+ * does not provide such a data source, null is returned and callers have to
+ * fall back to reading the whole feature.
+ *
+ */
+final class GridSubsetReader {
+
+	// the reflective lookup is done once per dataset class, empty if bounded reads are not supported
+	private static final ClassValue<Optional<Method>> openDataSourceMethods = new ClassValue<Optional<Method>>() {
+		@Override
+		protected Optional<Method> computeValue(Class<?> type) {
+			return findOpenDataSource(type);
+		}
+	};
+
+	private GridSubsetReader() {
+	}
+
+	/**
+	 * Bounded reads address a variable, not a feature. A gridded feature is read from
+	 * the variable of the same id, together with its child variables.
+	 *
+	 * @return whether the variable is part of the given feature
+	 */
+	static boolean isVariableOfFeature(VariableMetadata varMeta, String featureId) {
+		for (VariableMetadata v = varMeta; v != null; v = v.getParent()) {
+			if (v.getId().equals(featureId)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return whether bounded reads of the dataset are possible, such that {@link #openDataSource(Dataset)}
+	 *         and the read methods never return null
+	 */
+	static boolean supportsBoundedReads(Dataset dataset) {
+		return openDataSourceMethods.get(dataset.getClass()).isPresent();
+	}
+
+	/**
+	 * Reads the index box spanned by the given axes indices.
+	 * The returned array is addressed with the same (absolute) indices
+	 * as the full variable.
+	 *
+	 * @return null if the dataset does not support bounded reads
+	 */
+	static Array4D<Number> read(Dataset dataset, String variableId, AxesIndices ind, int[] fullShape) {
+		if (ind.t.isEmpty() || ind.z.isEmpty() || ind.y.isEmpty() || ind.x.isEmpty()) {
+			// empty subset, nothing will be read from the array
+			return wrap(null, fullShape, ind);
+		}
+		GridDataSource dataSource = openDataSource(dataset);
+		if (dataSource == null) {
+			return null;
+		}
+		Array4D<Number> vals;
+		try {
+			vals = read(dataSource, variableId, ind, fullShape);
+		} catch (RuntimeException e) {
+			try {
+				dataSource.close();
+			} catch (Exception closeFailure) {
+				e.addSuppressed(closeFailure);
+			}
+			throw e;
+		}
+		close(dataSource);
+		return vals;
+	}
+
+	/**
+	 * Like {@link #read(Dataset, String, AxesIndices, int[])}, but with an already opened
+	 * data source which is left open, for reading many index boxes in a row.
+	 */
+	static Array4D<Number> read(GridDataSource dataSource, String variableId, AxesIndices ind, int[] fullShape) {
+		if (ind.t.isEmpty() || ind.z.isEmpty() || ind.y.isEmpty() || ind.x.isEmpty()) {
+			return wrap(null, fullShape, ind);
+		}
+		try (Metrics.Timer timer = Metrics.time(Metrics.Phase.EXTRACT)) {
+			Array4D<Number> sub = dataSource.read(variableId,
+					ind.t.getFirst(), ind.t.getLast(), ind.z.getFirst(), ind.z.getLast(),
+					ind.y.getFirst(), ind.y.getLast(), ind.x.getFirst(), ind.x.getLast());
+			return wrap(sub, fullShape, ind);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	static void close(GridDataSource dataSource) {
+		try {
+			dataSource.close();
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static Array4D<Number> wrap(Array4D<Number> sub, int[] fullShape, AxesIndices ind) {
+		int tMin = ind.t.isEmpty() ? 0 : ind.t.getFirst();
+		int zMin = ind.z.isEmpty() ? 0 : ind.z.getFirst();
+		int yMin = ind.y.isEmpty() ? 0 : ind.y.getFirst();
+		int xMin = ind.x.isEmpty() ? 0 : ind.x.getFirst();
+		return new Array4D<Number>(fullShape[0], fullShape[1], fullShape[2], fullShape[3]) {
+			// reused to avoid allocating an array per cell, arrays are not shared between threads
+			private final int[] local = new int[4];
+			@Override
+			public Number get(int... coords) {
+				local[0] = coords[0] - tMin;
+				local[1] = coords[1] - zMin;
+				local[2] = coords[2] - yMin;
+				local[3] = coords[3] - xMin;
+				return sub.get(local);
+			}
+			@Override
+			public void set(Number value, int... coords) {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * @return null if the dataset does not support bounded reads
+	 */
+	static GridDataSource openDataSource(Dataset dataset) {
+		Optional<Method> m = openDataSourceMethods.get(dataset.getClass());
+		if (!m.isPresent()) {
+			return null;
+		}
+		try {
+			return (GridDataSource) m.get().invoke(dataset);
+		} catch (InvocationTargetException e) {
+			// the data source exists but could not be opened, e.g. the file is unreadable
+			throw new RuntimeException(e.getCause());
+		} catch (IllegalAccessException e) {
+			// cannot happen, the method was made accessible when looked up
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static Optional<Method> findOpenDataSource(Class<?> type) {
+		for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+			Method m;
+			try {
+				m = c.getDeclaredMethod("openDataSource");
+			} catch (NoSuchMethodException e) {
+				continue;
+			}
+			if (!GridDataSource.class.isAssignableFrom(m.getReturnType())) {
+				return Optional.empty();
+			}
+			try {
+				m.setAccessible(true);
+			} catch (SecurityException e) {
+				System.err.println("Bounded reads disabled for " + type.getName() + ": " + e.getMessage());
+				return Optional.empty();
+			}
+			return Optional.of(m);
+		}
+		return Optional.empty();
+	}
+}
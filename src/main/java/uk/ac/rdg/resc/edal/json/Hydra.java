@@ -19,7 +19,7 @@ public class Hydra {
 		assert canFilter || canSubset;
 		
 		String filter = "bbox,timeStart,timeEnd,verticalStart,verticalEnd";
-		String subset = "subsetBbox,subsetTimeStart,subsetTimeEnd,subsetVerticalStart,subsetVerticalEnd,subsetVerticalTarget";
+		String subset = "subsetBbox,subsetTimeStart,subsetTimeEnd,subsetVerticalStart,subsetVerticalEnd,subsetVerticalTarget,subsetStride";
 		
 		String templateStart = queryString.equals("") ? "{?" : "{&";
 		String template = baseUrl + queryString + templateStart;
@@ -77,7 +77,12 @@ public class Hydra {
 				mapping("subsetVerticalTarget", Constants.CovAPIPrefix + ":subsetVerticalTarget", "xsd:string", 
 						"Numeric string with a vertical target given in native CRS units. "
 						+ "The subsetted coverage will only contain the single vertical coordinate which is closest "
-						+ "to the target.")
+						+ "to the target."),
+				
+				mapping("subsetStride", Constants.CovAPIPrefix + ":subsetStride", "xsd:integer", 
+						"Positive integer n. The subsetted coverage will only contain every n-th coordinate "
+						+ "of the horizontal axes, counted from the first coordinate of the full axes. "
+						+ "This allows to request a lower resolution.")
 				);
 		}
 		
@@ -0,0 +1,102 @@
+package uk.ac.rdg.resc.edal.json;
+
+import java.util.stream.IntStream;
+
+/**
+ * A range of axis indices with constant step, stored as start, size and step
+ * instead of an array of every index.
+ *
+ */
+final class IndexRange {
+
+	static final IndexRange EMPTY = new IndexRange(0, 0, 1);
+
+	private final int start;
+	private final int size;
+	private final int step;
+
+	private IndexRange(int start, int size, int step) {
+		this.start = start;
+		this.size = size;
+		this.step = step;
+	}
+
+	/**
+	 * @param first first index, inclusive
+	 * @param last last index, inclusive
+	 */
+	static IndexRange of(int first, int last) {
+		if (last < first) {
+			return EMPTY;
+		}
+		return new IndexRange(first, last - first + 1, 1);
+	}
+
+	static IndexRange single(int index) {
+		return new IndexRange(index, 1, 1);
+	}
+
+	/**
+	 * Returns the indices of this contiguous range which are a multiple of the stride.
+	 * The indices are aligned to the full axis, not to the start of the range, such that
+	 * neighbouring ranges line up. If no index of the range is a multiple of the stride,
+	 * the result is empty, as for a subset between two cells.
+	 */
+	IndexRange withStride(int stride) {
+		if (stride == 1 || size == 0) {
+			return this;
+		}
+		if (step != 1) {
+			throw new IllegalStateException("Range already has a stride");
+		}
+		int first = (start + stride - 1) / stride * stride;
+		int last = getLast() / stride * stride;
+		if (first > last) {
+			return EMPTY;
+		}
+		return new IndexRange(first, (last - first) / stride + 1, stride);
+	}
+
+	/**
+	 * @return the absolute axis index of the i-th element of the range
+	 */
+	int get(int i) {
+		return start + i * step;
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	int getFirst() {
+		return start;
+	}
+
+	int getLast() {
+		return start + (size - 1) * step;
+	}
+
+	int getStep() {
+		return step;
+	}
+
+	IntStream stream() {
+		return IntStream.range(0, size).map(this::get);
+	}
+
+	int[] toArray() {
+		return stream().toArray();
+	}
+
+	@Override
+	public String toString() {
+		if (isEmpty()) {
+			return "[]";
+		}
+		return "[" + getFirst() + ".." + getLast() + (step == 1 ? "" : " step " + step) + "]";
+	}
+}
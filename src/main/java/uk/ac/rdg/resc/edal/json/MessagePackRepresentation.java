@@ -1,10 +1,15 @@
 package uk.ac.rdg.resc.edal.json;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
 import org.msgpack.MessagePack;
+import org.msgpack.MessageTypeException;
+import org.msgpack.packer.Packer;
+import org.msgpack.template.AbstractTemplate;
+import org.msgpack.unpacker.Unpacker;
 import org.restlet.data.MediaType;
 import org.restlet.representation.StreamRepresentation;
 
@@ -17,22 +22,94 @@ public class MessagePackRepresentation extends StreamRepresentation {
 	}
 	
 	private final Object o;
+	private final boolean typedArrays;
 		
     public MessagePackRepresentation(Object o) {
+    	this(o, false);
+    }
+    
+    /**
+     * @param typedArrays whether to encode range values and primitive arrays
+     *                    as binary blobs, see {@link MessagePackWriter}
+     */
+    public MessagePackRepresentation(Object o, boolean typedArrays) {
     	super(APPLICATION_MSGPACK);
         this.o = o;
+        this.typedArrays = typedArrays;
     }
 
     @Override
     public void write(OutputStream out) throws IOException {
-    	long t0 = System.currentTimeMillis();
-    	new MessagePack().write(out, this.o);
-    	System.out.println("write to stream: " + String.valueOf(System.currentTimeMillis()-t0));
+    	if (typedArrays) {
+    		BufferedOutputStream buffered = new BufferedOutputStream(out, 64 * 1024);
+    		new MessagePackWriter(buffered).write(this.o);
+    		buffered.flush();
+    		return;
+    	}
+    	MessagePack msgpack = new MessagePack();
+    	msgpack.register(RangeValues.class, new RangeValuesTemplate());
+    	msgpack.register(CoverageStream.class, new CoverageStream.MessagePackTemplate());
+    	msgpack.write(out, this.o);
     }
 
 	@Override
 	public InputStream getStream() throws IOException {
 		return null;
 	}
+	
+	/**
+	 * Packs range values directly from their primitive buffers.
+	 */
+	static class RangeValuesTemplate extends AbstractTemplate<RangeValues> {
+		@Override
+		public void write(Packer pk, RangeValues vals, boolean required) throws IOException {
+			if (vals == null) {
+				if (required) {
+					throw new MessageTypeException("Attempted to write null");
+				}
+				pk.writeNil();
+				return;
+			}
+			if (vals.size() > Integer.MAX_VALUE) {
+				throw new MessageTypeException("range too big for a msgpack array, please subset");
+			}
+			pk.writeArrayBegin((int) vals.size());
+			vals.forEachChunk(chunk -> {
+				int length = chunk.length();
+				switch (chunk.getDataType()) {
+				case INTEGER:
+					int[] ints = chunk.getIntValues();
+					for (int i=0; i < length; i++) {
+						if (chunk.isMissing(i)) pk.writeNil(); else pk.write(ints[i]);
+					}
+					break;
+				case FLOAT:
+					float[] floats = chunk.getFloatValues();
+					for (int i=0; i < length; i++) {
+						if (chunk.isMissing(i)) pk.writeNil(); else pk.write(floats[i]);
+					}
+					break;
+				case DOUBLE:
+					double[] doubles = chunk.getDoubleValues();
+					for (int i=0; i < length; i++) {
+						if (chunk.isMissing(i)) pk.writeNil(); else pk.write(doubles[i]);
+					}
+					break;
+				case LONG:
+					long[] longs = chunk.getLongValues();
+					for (int i=0; i < length; i++) {
+						if (chunk.isMissing(i)) pk.writeNil(); else pk.write(longs[i]);
+					}
+					break;
+				}
+			});
+			pk.writeArrayEnd();
+		}
+
+		@Override
+		public RangeValues read(Unpacker u, RangeValues to, boolean required) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+	}
 
 }
@@ -0,0 +1,235 @@
+package uk.ac.rdg.resc.edal.json;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Encodes a tree of maps, lists, arrays, strings and numbers as MessagePack
+ * (current spec, including str8, bin and ext) directly to an output stream.
+ *
+ * Range values and primitive arrays are written as a single ext blob of little endian
+ * values. The ext type code declares the element type and uses the same numbers
+ * as the CBOR typed array tags (85 = float32, 78 = int32, 86 = float64).
+ * Any map containing range values additionally gets a "missingValue" entry with the
+ * sentinel used for missing values: NaN for float32 and {@link Integer#MIN_VALUE} for int32.
+ *
+ * The old msgpack library used by {@link MessagePackRepresentation} only knows the
+ * old raw type and cannot embed binary blobs, therefore this writer exists.
+ *
+ */
+class MessagePackWriter {
+
+	static final int EXT_FLOAT32_LE = 85;
+	static final int EXT_INT32_LE = 78;
+	static final int EXT_FLOAT64_LE = 86;
+
+	static final String MISSING_VALUE = "missingValue";
+	static final int INT32_MISSING_VALUE = Integer.MIN_VALUE;
+
+	private static final int NIL = 0xc0;
+	private static final int FALSE = 0xc2;
+	private static final int TRUE = 0xc3;
+
+	private final OutputStream out;
+	private final byte[] scratch = new byte[9];
+
+	public MessagePackWriter(OutputStream out) {
+		this.out = out;
+	}
+
+	public void write(Object o) throws IOException {
+		if (o == null) {
+			out.write(NIL);
+		} else if (o instanceof Boolean) {
+			out.write((Boolean) o ? TRUE : FALSE);
+		} else if (o instanceof Integer || o instanceof Long || o instanceof Short || o instanceof Byte) {
+			writeInteger(((Number) o).longValue());
+		} else if (o instanceof Float) {
+			writeFloat((Float) o);
+		} else if (o instanceof Double) {
+			writeDouble((Double) o);
+		} else if (o instanceof String) {
+			writeString((String) o);
+		} else if (o instanceof RangeValues) {
+			writeRangeValues((RangeValues) o);
+		} else if (o instanceof CoverageStream) {
+			CoverageStream coverages = (CoverageStream) o;
+			writeHeader(0x90, 0xdc, 0xdd, 16, coverages.size());
+			coverages.forEachBatch(batch -> {
+				for (Object coverage : batch) {
+					write(coverage);
+				}
+				out.flush();
+			});
+		} else if (o instanceof List) {
+			List<?> l = (List<?>) o;
+			writeHeader(0x90, 0xdc, 0xdd, 16, l.size());
+			for (Object el : l) {
+				write(el);
+			}
+		} else if (o instanceof Map) {
+			writeMap((Map<?,?>) o);
+		} else if (o instanceof int[]) {
+			int[] arr = (int[]) o;
+			writeExtHeader(EXT_INT32_LE, arr.length * 4L);
+			out.write(TypedArray.toByteArray(arr, true));
+		} else if (o instanceof float[]) {
+			float[] arr = (float[]) o;
+			writeExtHeader(EXT_FLOAT32_LE, arr.length * 4L);
+			out.write(TypedArray.toByteArray(arr, true));
+		} else if (o instanceof double[]) {
+			double[] arr = (double[]) o;
+			writeExtHeader(EXT_FLOAT64_LE, arr.length * 8L);
+			out.write(TypedArray.toByteArray(arr, true));
+		} else if (o instanceof Object[]) {
+			Object[] a = (Object[]) o;
+			writeHeader(0x90, 0xdc, 0xdd, 16, a.length);
+			for (Object el : a) {
+				write(el);
+			}
+		} else {
+			throw new RuntimeException("Type not supported: " + o.getClass().getName());
+		}
+	}
+
+	private void writeMap(Map<?,?> m) throws IOException {
+		RangeValues rangeValues = null;
+		for (Object v : m.values()) {
+			if (v instanceof RangeValues) {
+				rangeValues = (RangeValues) v;
+			}
+		}
+		writeHeader(0x80, 0xde, 0xdf, 16, rangeValues == null ? m.size() : m.size() + 1);
+		for (Entry<?,?> entry : m.entrySet()) {
+			write(entry.getKey());
+			write(entry.getValue());
+		}
+		if (rangeValues != null) {
+			writeString(MISSING_VALUE);
+			if (rangeValues.isCategorical()) {
+				writeInteger(INT32_MISSING_VALUE);
+			} else {
+				writeFloat(Float.NaN);
+			}
+		}
+	}
+
+	private void writeRangeValues(RangeValues vals) throws IOException {
+		boolean isCategorical = vals.isCategorical();
+		writeExtHeader(isCategorical ? EXT_INT32_LE : EXT_FLOAT32_LE, vals.size() * 4);
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(vals.size(), RangeValues.CHUNK_SIZE) * 4)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		vals.forEachChunk(chunk -> {
+			buffer.clear();
+			if (isCategorical) {
+				chunk.putInt32(buffer, INT32_MISSING_VALUE);
+			} else {
+				chunk.putFloat32(buffer);
+			}
+			out.write(buffer.array(), 0, buffer.position());
+		});
+	}
+
+	private void writeExtHeader(int type, long length) throws IOException {
+		if (length > 0xffffffffL) {
+			throw new IllegalArgumentException("range too big for a msgpack ext, please subset");
+		}
+		int bytes;
+		if (length < 0x100L) {
+			scratch[0] = (byte) 0xc7;
+			bytes = 1;
+		} else if (length < 0x10000L) {
+			scratch[0] = (byte) 0xc8;
+			bytes = 2;
+		} else {
+			scratch[0] = (byte) 0xc9;
+			bytes = 4;
+		}
+		putBigEndian(length, bytes);
+		scratch[bytes + 1] = (byte) type;
+		out.write(scratch, 0, bytes + 2);
+	}
+
+	private void writeString(String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length < 32) {
+			out.write(0xa0 | bytes.length);
+		} else if (bytes.length < 0x100) {
+			scratch[0] = (byte) 0xd9;
+			scratch[1] = (byte) bytes.length;
+			out.write(scratch, 0, 2);
+		} else {
+			writeHeader(0xa0, 0xda, 0xdb, 0, bytes.length);
+		}
+		out.write(bytes);
+	}
+
+	private void writeInteger(long n) throws IOException {
+		if (-32 <= n && n < 128) {
+			// positive or negative fixint
+			out.write((int) n);
+			return;
+		}
+		int bytes;
+		if (Byte.MIN_VALUE <= n && n <= Byte.MAX_VALUE) {
+			scratch[0] = (byte) 0xd0;
+			bytes = 1;
+		} else if (Short.MIN_VALUE <= n && n <= Short.MAX_VALUE) {
+			scratch[0] = (byte) 0xd1;
+			bytes = 2;
+		} else if (Integer.MIN_VALUE <= n && n <= Integer.MAX_VALUE) {
+			scratch[0] = (byte) 0xd2;
+			bytes = 4;
+		} else {
+			scratch[0] = (byte) 0xd3;
+			bytes = 8;
+		}
+		putBigEndian(n, bytes);
+		out.write(scratch, 0, bytes + 1);
+	}
+
+	private void writeFloat(float f) throws IOException {
+		scratch[0] = (byte) 0xca;
+		putBigEndian(Float.floatToIntBits(f), 4);
+		out.write(scratch, 0, 5);
+	}
+
+	private void writeDouble(double d) throws IOException {
+		scratch[0] = (byte) 0xcb;
+		putBigEndian(Double.doubleToLongBits(d), 8);
+		out.write(scratch, 0, 9);
+	}
+
+	/**
+	 * Writes the header of a map, array or string using the fix, 16 or 32 bit variant.
+	 */
+	private void writeHeader(int fixType, int type16, int type32, int fixLimit, long length) throws IOException {
+		if (length < fixLimit) {
+			out.write(fixType | (int) length);
+			return;
+		}
+		int bytes;
+		if (length < 0x10000L) {
+			scratch[0] = (byte) type16;
+			bytes = 2;
+		} else {
+			scratch[0] = (byte) type32;
+			bytes = 4;
+		}
+		putBigEndian(length, bytes);
+		out.write(scratch, 0, bytes + 1);
+	}
+
+	private void putBigEndian(long value, int bytes) {
+		for (int i=bytes; i > 0; i--) {
+			scratch[i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+}
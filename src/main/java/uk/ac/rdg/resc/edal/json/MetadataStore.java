@@ -0,0 +1,345 @@
+package uk.ac.rdg.resc.edal.json;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.Chronology;
+import org.joda.time.DateTime;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import uk.ac.rdg.resc.edal.domain.Extent;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
+import uk.ac.rdg.resc.edal.json.CoverageResource.FeatureMetadata;
+import uk.ac.rdg.resc.edal.json.RangeMetadata.Statistics;
+import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.position.VerticalCrs;
+import uk.ac.rdg.resc.edal.util.Extents;
+
+/**
+ * Persists the extracted {@link FeatureMetadata} of a dataset in a compact binary file
+ * such that it doesn't have to be extracted again by reading every feature after a restart.
+ *
+ * A stored file is only used if the path, size and modification time of the dataset source
+ * file are unchanged, otherwise the metadata is extracted and stored again.
+ *
+ * The file consists of a header identifying the source, a table of shared objects
+ * (parameters, CRSs, chronologies) in Java serialization form, and one fixed-layout
+ * record per feature referring to the table by index. Files are read via memory-mapping.
+ *
+ * Parameter statistics are computed lazily (see {@link RangeMetadata}), the file is
+ * written again in the background whenever new ones are known, such that they
+ * don't have to be computed again after a restart either.
+ *
+ */
+final class MetadataStore {
+
+	/**
+	 * Folder where metadata files are stored,
+	 * can be set with the system property edal.json.metadataDir.
+	 * An empty value disables the store.
+	 */
+	static final String METADATA_DIR = System.getProperty("edal.json.metadataDir",
+			new File(System.getProperty("java.io.tmpdir"), "edal-json-metadata").getPath());
+
+	private static final int MAGIC = 0x45444a4d; // "EDJM"
+	private static final int VERSION = 2;
+
+	private static final int NONE = -1;
+
+	// statistics computed shortly after each other, e.g. for a page of coverages, are stored in one write
+	private static final int WRITE_DELAY_SECONDS = 10;
+
+	private static final ScheduledExecutorService WRITE_EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "metadata-write");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// datasets with a scheduled write
+	private static final Set<String> pendingWrites = ConcurrentHashMap.newKeySet();
+
+	private MetadataStore() {
+	}
+
+	/**
+	 * @return null if there is no stored metadata or it is outdated
+	 */
+	static List<FeatureMetadata> read(String datasetId) {
+		File source = getSourceFile(datasetId);
+		File file = getMetadataFile(datasetId);
+		if (source == null || file == null || !file.isFile()) {
+			return null;
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buf.getInt() != MAGIC || buf.getInt() != VERSION ||
+					!source.getAbsolutePath().equals(getString(buf)) ||
+					buf.getLong() != source.length() || buf.getLong() != source.lastModified()) {
+				return null;
+			}
+			List<Object> objects = readObjects(buf);
+			int featureCount = buf.getInt();
+			List<FeatureMetadata> metas = new ArrayList<>(featureCount);
+			for (int i=0; i < featureCount; i++) {
+				metas.add(readFeatureMetadata(buf, datasetId, objects));
+			}
+			return metas;
+		} catch (Exception e) {
+			System.err.println("Ignoring unreadable metadata file " + file);
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Stores the metadata of a dataset, failures are logged and otherwise ignored.
+	 */
+	static void write(String datasetId, Collection<FeatureMetadata> metas) {
+		File source = getSourceFile(datasetId);
+		File file = getMetadataFile(datasetId);
+		if (source == null || file == null) {
+			return;
+		}
+		try {
+			Map<Object,Integer> objects = new LinkedHashMap<>();
+			ByteArrayOutputStream records = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(records);
+			out.writeInt(metas.size());
+			for (FeatureMetadata meta : metas) {
+				writeFeatureMetadata(out, meta, objects);
+			}
+			out.flush();
+
+			Files.createDirectories(file.getParentFile().toPath());
+			Path tmp = Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp");
+			try (DataOutputStream fileOut = new DataOutputStream(
+					new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+				fileOut.writeInt(MAGIC);
+				fileOut.writeInt(VERSION);
+				writeString(fileOut, source.getAbsolutePath());
+				fileOut.writeLong(source.length());
+				fileOut.writeLong(source.lastModified());
+				writeObjects(fileOut, objects.keySet());
+				records.writeTo(fileOut);
+			}
+			// readers never see partially written files
+			Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (Exception e) {
+			System.err.println("Could not store metadata of dataset " + datasetId);
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stores the metadata of a dataset again after a delay, including all statistics known by then.
+	 * Does nothing if a write of the dataset is scheduled already.
+	 */
+	static void scheduleWrite(String datasetId) {
+		if (METADATA_DIR.isEmpty() || !pendingWrites.add(datasetId)) {
+			return;
+		}
+		WRITE_EXECUTOR.schedule(() -> {
+			pendingWrites.remove(datasetId);
+			try {
+				DatasetMetadata datasetMeta = DatasetResource.getDatasetMetadata(datasetId);
+				write(datasetId, Utils.mapList(datasetMeta.getFeatureIds(), datasetMeta::getFeatureMetadata));
+			} catch (Exception e) {
+				System.err.println("Could not store metadata of dataset " + datasetId);
+				e.printStackTrace();
+			}
+		}, WRITE_DELAY_SECONDS, TimeUnit.SECONDS);
+	}
+
+	static File getSourceFile(String datasetId) {
+		URL resource = Utils.class.getResource(Utils.DATASETS_FOLDER + datasetId);
+		if (resource == null) {
+			return null;
+		}
+		File source = new File(resource.getFile());
+		return source.isFile() ? source : null;
+	}
+
+	/**
+	 * @return size and modification time of the source file for use in cache keys,
+	 *         or an empty string if there is no source file
+	 */
+	static String getSourceVersion(String datasetId) {
+		File source = getSourceFile(datasetId);
+		return source == null ? "" : source.length() + "-" + source.lastModified();
+	}
+
+	private static File getMetadataFile(String datasetId) {
+		if (METADATA_DIR.isEmpty()) {
+			return null;
+		}
+		return new File(METADATA_DIR, datasetId + ".meta");
+	}
+
+	private static void writeFeatureMetadata(DataOutputStream out, FeatureMetadata meta, Map<Object,Integer> objects) throws IOException {
+		writeString(out, meta.featureId);
+		writeString(out, meta.name);
+		writeString(out, meta.type.getName());
+
+		DomainMetadata domain = meta.domainMeta;
+		writeString(out, domain.getType());
+		BoundingBox bbox = domain.getBoundingBox();
+		out.writeInt(bbox == null ? NONE : index(objects, bbox.getCoordinateReferenceSystem()));
+		if (bbox != null) {
+			out.writeDouble(bbox.getMinX());
+			out.writeDouble(bbox.getMinY());
+			out.writeDouble(bbox.getMaxX());
+			out.writeDouble(bbox.getMaxY());
+		}
+		Extent<DateTime> time = domain.getTimeExtent();
+		out.writeInt(time == null ? NONE : index(objects, time.getLow().getChronology()));
+		if (time != null) {
+			out.writeLong(time.getLow().getMillis());
+			out.writeLong(time.getHigh().getMillis());
+		}
+		Extent<Double> vertical = domain.getVerticalExtent();
+		out.writeBoolean(vertical != null);
+		if (vertical != null) {
+			out.writeDouble(vertical.getLow());
+			out.writeDouble(vertical.getHigh());
+		}
+		VerticalCrs verticalCrs = domain.getVerticalCrs();
+		out.writeInt(verticalCrs == null ? NONE : index(objects, verticalCrs));
+
+		RangeMetadata range = meta.rangeMeta;
+		out.writeInt(range.getParameterIds().size());
+		for (String paramId : range.getParameterIds()) {
+			Parameter param = range.getParameter(paramId);
+			writeString(out, paramId);
+			out.writeInt(index(objects, param));
+			// statistics are computed lazily, only store the ones known so far, see scheduleWrite
+			Statistics stats = range.getCachedStatistics(param);
+			out.writeBoolean(stats != null);
+			if (stats != null) {
+				out.writeDouble(stats.min);
+				out.writeDouble(stats.max);
+				out.writeBoolean(stats.approximate);
+			}
+		}
+	}
+
+	private static FeatureMetadata readFeatureMetadata(ByteBuffer buf, String datasetId, List<Object> objects) throws ClassNotFoundException {
+		String featureId = getString(buf);
+		String name = getString(buf);
+		Class<?> type = Class.forName(getString(buf));
+
+		String domainType = getString(buf);
+		BoundingBox bbox = null;
+		int crsIdx = buf.getInt();
+		if (crsIdx != NONE) {
+			bbox = new BoundingBoxImpl(buf.getDouble(), buf.getDouble(), buf.getDouble(), buf.getDouble(),
+					(CoordinateReferenceSystem) objects.get(crsIdx));
+		}
+		Extent<DateTime> time = null;
+		int chronologyIdx = buf.getInt();
+		if (chronologyIdx != NONE) {
+			Chronology chronology = (Chronology) objects.get(chronologyIdx);
+			time = Extents.newExtent(new DateTime(buf.getLong(), chronology), new DateTime(buf.getLong(), chronology));
+		}
+		Extent<Double> vertical = null;
+		if (buf.get() != 0) {
+			vertical = Extents.newExtent(buf.getDouble(), buf.getDouble());
+		}
+		int verticalCrsIdx = buf.getInt();
+		VerticalCrs verticalCrs = verticalCrsIdx == NONE ? null : (VerticalCrs) objects.get(verticalCrsIdx);
+		DomainMetadata domainMeta = new DomainMetadata(domainType, bbox, time, vertical, verticalCrs);
+
+		int paramCount = buf.getInt();
+		Map<String,Parameter> params = new HashMap<>();
+		Map<Parameter,Statistics> stats = new HashMap<>();
+		for (int i=0; i < paramCount; i++) {
+			String paramId = getString(buf);
+			Parameter param = (Parameter) objects.get(buf.getInt());
+			params.put(paramId, param);
+			if (buf.get() != 0) {
+				stats.put(param, new Statistics(buf.getDouble(), buf.getDouble(), buf.get() != 0));
+			}
+		}
+		RangeMetadata rangeMeta = new RangeMetadata(datasetId, featureId, params, stats);
+
+		return new FeatureMetadata(datasetId, featureId, name, type, domainMeta, rangeMeta);
+	}
+
+	/**
+	 * Returns the table index of an object, adding it if it is not contained yet.
+	 * Objects are compared by equality such that each one is stored only once.
+	 */
+	private static int index(Map<Object,Integer> objects, Object o) {
+		return objects.computeIfAbsent(o, k -> objects.size());
+	}
+
+	private static void writeObjects(DataOutputStream out, Collection<Object> objects) throws IOException {
+		out.writeInt(objects.size());
+		for (Object o : objects) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+				oos.writeObject(o);
+			}
+			out.writeInt(bytes.size());
+			bytes.writeTo(out);
+		}
+	}
+
+	private static List<Object> readObjects(ByteBuffer buf) throws IOException, ClassNotFoundException {
+		int count = buf.getInt();
+		List<Object> objects = new ArrayList<>(count);
+		for (int i=0; i < count; i++) {
+			byte[] bytes = new byte[buf.getInt()];
+			buf.get(bytes);
+			try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+				objects.add(ois.readObject());
+			}
+		}
+		return objects;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(NONE);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String getString(ByteBuffer buf) {
+		int length = buf.getInt();
+		if (length == NONE) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		buf.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,298 @@
+package uk.ac.rdg.resc.edal.json;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import com.google.common.cache.CacheStats;
+
+/**
+ * Request timings and cache statistics, exposed in the Prometheus text format by {@link MetricsResource}.
+ *
+ * Each request is traced by the filter in front of all resources (see {@link App}).
+ * Code running on the request thread measures its phases with {@link #time(Phase)},
+ * the trace is recorded once the response is written, labelled with the route,
+ * the media type of the response, and the dataset. Work done on other threads,
+ * like parallel collection building or background overview builds, is not traced.
+ *
+ */
+final class Metrics {
+
+	enum Phase {
+		/** Opening datasets and looking up their extracted metadata */
+		METADATA,
+		/** Reading whole features */
+		READ,
+		/** Resolving subset constraints to axis indices */
+		INDEX,
+		/** Reading values of index boxes */
+		EXTRACT,
+		/** Writing the response, including lazy value extraction */
+		SERIALIZE;
+
+		final String label = name().toLowerCase();
+	}
+
+	private static final double[] SECONDS_BUCKETS =
+		{ 0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60 };
+
+	private static final double[] BYTES_BUCKETS =
+		{ 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9 };
+
+	private static final Family requestSeconds = new Family("edal_json_request_seconds",
+			"Time from receiving a request until its response is written", SECONDS_BUCKETS,
+			"route", "format", "dataset");
+	private static final Family phaseSeconds = new Family("edal_json_phase_seconds",
+			"Time spent in a phase of handling a request", SECONDS_BUCKETS,
+			"phase", "route", "format", "dataset");
+	private static final Family responseBytes = new Family("edal_json_response_bytes",
+			"Size of written response bodies", BYTES_BUCKETS,
+			"route", "format", "dataset");
+	private static final Family requests = new Family("edal_json_requests_total",
+			"Number of handled requests", null,
+			"route", "status");
+	private static final Family coalesced = new Family("edal_json_coalesced_requests_total",
+			"Number of requests answered with the response of an identical request in flight", null,
+			"route");
+
+	private static final ThreadLocal<Trace> currentTrace = new ThreadLocal<>();
+
+	private Metrics() {
+	}
+
+	/**
+	 * The phase durations of a single request.
+	 */
+	static class Trace {
+		final String route;
+		final String dataset;
+		final long start = System.nanoTime();
+		private final Map<Phase,Long> nanos = new EnumMap<>(Phase.class);
+		private final Map<Phase,Integer> depth = new EnumMap<>(Phase.class);
+
+		/**
+		 * @param dataset the dataset id from the URL, only used as label if such a dataset exists,
+		 *                such that clients cannot create arbitrarily many series
+		 */
+		Trace(String route, String dataset) {
+			this.route = route;
+			this.dataset = dataset == null || MetadataStore.getSourceFile(dataset) == null ? "" : dataset;
+		}
+
+		synchronized void add(Phase phase, long duration) {
+			nanos.merge(phase, duration, Long::sum);
+		}
+
+		// nested timers of the same phase, e.g. a metadata cache load opening the dataset, count once
+		synchronized boolean enter(Phase phase) {
+			return depth.merge(phase, 1, Integer::sum) == 1;
+		}
+
+		synchronized void exit(Phase phase) {
+			depth.merge(phase, -1, Integer::sum);
+		}
+
+		/**
+		 * Records all phases and the total request time.
+		 *
+		 * @param bytes the number of body bytes written, or -1 if there is no body
+		 */
+		void record(String format, int status, long bytes) {
+			Map<Phase,Long> phases;
+			synchronized (this) {
+				phases = new EnumMap<>(nanos);
+			}
+			for (Map.Entry<Phase,Long> entry : phases.entrySet()) {
+				phaseSeconds.observe(entry.getValue() / 1e9, entry.getKey().label, route, format, dataset);
+			}
+			requestSeconds.observe((System.nanoTime() - start) / 1e9, route, format, dataset);
+			if (bytes >= 0) {
+				responseBytes.observe(bytes, route, format, dataset);
+			}
+			requests.inc(route, String.valueOf(status));
+		}
+	}
+
+	/**
+	 * Measures a phase until closed, use with try-with-resources.
+	 */
+	static class Timer implements AutoCloseable {
+		private final Trace trace;
+		private final Phase phase;
+		private final long start;
+
+		private Timer(Trace trace, Phase phase) {
+			this.trace = trace;
+			this.phase = phase;
+			this.start = System.nanoTime();
+		}
+
+		@Override
+		public void close() {
+			if (trace != null) {
+				trace.add(phase, System.nanoTime() - start);
+				trace.exit(phase);
+			}
+		}
+	}
+
+	private static final Timer NO_TIMER = new Timer(null, null);
+
+	/**
+	 * Starts measuring a phase of the request handled by the current thread, if any.
+	 */
+	static Timer time(Phase phase) {
+		Trace trace = currentTrace.get();
+		if (trace == null) {
+			return NO_TIMER;
+		}
+		if (!trace.enter(phase)) {
+			trace.exit(phase);
+			return NO_TIMER;
+		}
+		return new Timer(trace, phase);
+	}
+
+	/**
+	 * Starts tracing the request handled by the current thread.
+	 */
+	static Trace startTrace(String route, String dataset) {
+		Trace trace = new Trace(route, dataset);
+		currentTrace.set(trace);
+		return trace;
+	}
+
+	/**
+	 * Stops tracing on the current thread, the trace may still be used for the serialization phase.
+	 */
+	static void endTrace() {
+		currentTrace.remove();
+	}
+
+	static void countCoalesced(String route) {
+		coalesced.inc(route);
+	}
+
+	/**
+	 * @return all metrics in the Prometheus text exposition format
+	 */
+	static String export() {
+		StringBuilder out = new StringBuilder();
+		requestSeconds.write(out);
+		phaseSeconds.write(out);
+		responseBytes.write(out);
+		requests.write(out);
+		coalesced.write(out);
+		Map<String,CacheStats> caches = new LinkedHashMap<>();
+		caches.put("dataset", Utils.getDatasetCacheStats());
+		caches.put("metadata", DatasetResource.getMetadataCacheStats());
+		caches.put("response", ResponseCache.getStats());
+		writeCacheStats(out, caches, "edal_json_cache_hits_total", "Number of cache hits", CacheStats::hitCount);
+		writeCacheStats(out, caches, "edal_json_cache_misses_total", "Number of cache misses", CacheStats::missCount);
+		writeCacheStats(out, caches, "edal_json_cache_evictions_total", "Number of cache evictions", CacheStats::evictionCount);
+		// includes the metadata extraction of the warm-up
+		writeCacheStats(out, caches, "edal_json_cache_load_seconds_total", "Time spent loading cache entries",
+				s -> s.totalLoadTime() / 1e9);
+		return out.toString();
+	}
+
+	private static void writeCacheStats(StringBuilder out, Map<String,CacheStats> caches, String name, String help,
+			Function<CacheStats,Number> stat) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" counter\n");
+		for (Map.Entry<String,CacheStats> cache : caches.entrySet()) {
+			out.append(name).append("{cache=\"").append(cache.getKey()).append("\"} ")
+				.append(stat.apply(cache.getValue())).append('\n');
+		}
+	}
+
+	/**
+	 * A histogram, or a counter if there are no buckets, with one series per combination of label values.
+	 */
+	private static class Family {
+		final String name;
+		final String help;
+		final double[] buckets;
+		final String[] labelNames;
+		final ConcurrentMap<List<String>,Series> series = new ConcurrentHashMap<>();
+
+		Family(String name, String help, double[] buckets, String... labelNames) {
+			this.name = name;
+			this.help = help;
+			this.buckets = buckets;
+			this.labelNames = labelNames;
+		}
+
+		void observe(double value, String... labelValues) {
+			Series s = series.computeIfAbsent(Arrays.asList(labelValues), k -> new Series(buckets));
+			if (buckets != null) {
+				for (int i=0; i < buckets.length; i++) {
+					if (value <= buckets[i]) {
+						s.counts[i].increment();
+						break;
+					}
+				}
+				s.sum.add(value);
+			}
+			s.count.increment();
+		}
+
+		void inc(String... labelValues) {
+			observe(1, labelValues);
+		}
+
+		void write(StringBuilder out) {
+			out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+			out.append("# TYPE ").append(name).append(' ').append(buckets != null ? "histogram" : "counter").append('\n');
+			for (Map.Entry<List<String>,Series> entry : series.entrySet()) {
+				String labels = formatLabels(entry.getKey());
+				Series s = entry.getValue();
+				if (buckets == null) {
+					out.append(name).append('{').append(labels).append("} ").append(s.count.sum()).append('\n');
+					continue;
+				}
+				// buckets are cumulative
+				long cumulative = 0;
+				for (int i=0; i < buckets.length; i++) {
+					cumulative += s.counts[i].sum();
+					out.append(name).append("_bucket{").append(labels).append(",le=\"")
+						.append(buckets[i]).append("\"} ").append(cumulative).append('\n');
+				}
+				out.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ")
+					.append(s.count.sum()).append('\n');
+				out.append(name).append("_sum{").append(labels).append("} ").append(s.sum.sum()).append('\n');
+				out.append(name).append("_count{").append(labels).append("} ").append(s.count.sum()).append('\n');
+			}
+		}
+
+		private String formatLabels(List<String> values) {
+			List<String> labels = new ArrayList<>();
+			for (int i=0; i < labelNames.length; i++) {
+				String value = values.get(i).replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+				labels.add(labelNames[i] + "=\"" + value + "\"");
+			}
+			return String.join(",", labels);
+		}
+	}
+
+	private static class Series {
+		final LongAdder[] counts;
+		final DoubleAdder sum = new DoubleAdder();
+		final LongAdder count = new LongAdder();
+
+		Series(double[] buckets) {
+			counts = new LongAdder[buckets == null ? 0 : buckets.length];
+			for (int i=0; i < counts.length; i++) {
+				counts[i] = new LongAdder();
+			}
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package uk.ac.rdg.resc.edal.json;
+
+import org.restlet.data.CacheDirective;
+import org.restlet.data.CharacterSet;
+import org.restlet.data.MediaType;
+import org.restlet.representation.Representation;
+import org.restlet.representation.StringRepresentation;
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Request timings and cache statistics in the Prometheus text format, see {@link Metrics}.
+ */
+public class MetricsResource extends ServerResource {
+
+	@Get("txt")
+	public Representation txt() {
+		Representation r = new StringRepresentation(Metrics.export(), MediaType.TEXT_PLAIN, null, CharacterSet.UTF_8);
+		getResponse().setCacheDirectives(ImmutableList.of(CacheDirective.noCache()));
+		return r;
+	}
+}
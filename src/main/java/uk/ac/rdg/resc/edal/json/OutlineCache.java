@@ -0,0 +1,122 @@
+package uk.ac.rdg.resc.edal.json;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.GZIPOutputStream;
+
+import org.restlet.data.Form;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.json.CoverageResource.FeatureMetadata;
+
+/**
+ * The GeoJSON outlines of all features of a dataset, serialized once and then reused.
+ *
+ * Outlines only depend on the feature metadata and the root URI, therefore each feature
+ * is serialized on first use and the bytes are spliced into every later FeatureCollection
+ * containing the feature. The unfiltered FeatureCollection, which is what map clients
+ * typically load, is kept as a whole, both uncompressed and gzip-compressed.
+ *
+ * Outlines with subset constraints contain the constraints in their URLs and are not cached.
+ *
+ */
+@SuppressWarnings("rawtypes")
+final class OutlineCache {
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private static final SubsetConstraint NO_SUBSET = new SubsetConstraint(new Form());
+
+	/**
+	 * A serialized FeatureCollection.
+	 */
+	static class SerializedCollection {
+		final byte[] json;
+		final byte[] gzipped;
+
+		SerializedCollection(byte[] json) throws IOException {
+			this.json = json;
+			ByteArrayOutputStream out = new ByteArrayOutputStream(json.length / 4);
+			try (GZIPOutputStream gzip = ResponseCache.newGzipStream(out)) {
+				gzip.write(json);
+			}
+			this.gzipped = out.toByteArray();
+		}
+	}
+
+	interface CollectionBuilder {
+		Map build() throws IOException, EdalException;
+	}
+
+	private final DatasetMetadata datasetMeta;
+	private final String rootUri;
+	// indexed by feature ordinal, see FeatureIndex
+	private final AtomicReferenceArray<RawJson> features;
+	private volatile SerializedCollection collection;
+
+	OutlineCache(DatasetMetadata datasetMeta, String rootUri) {
+		this.datasetMeta = datasetMeta;
+		this.rootUri = rootUri;
+		this.features = new AtomicReferenceArray<>(datasetMeta.getFeatureIndex().size());
+	}
+
+	/**
+	 * Returns the serialized outline of a feature without subset constraints.
+	 */
+	RawJson getFeature(FeatureMetadata meta) throws IOException, EdalException {
+		int ordinal = datasetMeta.getFeatureIndex().getOrdinal(meta.featureId);
+		RawJson json = features.get(ordinal);
+		if (json == null) {
+			// concurrent requests may both serialize the feature, which is harmless
+			Map geojson = CoverageOutlinesResource.getOutlinesAsGeoJson(datasetMeta.getLazyDataset(),
+					meta, rootUri, NO_SUBSET).build();
+			json = new RawJson(MAPPER.writeValueAsString(geojson));
+			features.set(ordinal, json);
+		}
+		return json;
+	}
+
+	/**
+	 * Returns the unfiltered FeatureCollection, building and serializing it on first access.
+	 */
+	SerializedCollection getCollection(CollectionBuilder builder) throws IOException, EdalException {
+		SerializedCollection c = collection;
+		if (c == null) {
+			synchronized (this) {
+				c = collection;
+				if (c == null) {
+					c = new SerializedCollection(MAPPER.writeValueAsBytes(builder.build()));
+					collection = c;
+				}
+			}
+		}
+		return c;
+	}
+
+	/**
+	 * Already serialized JSON which is written as is.
+	 */
+	@JsonSerialize(using = RawJson.Writer.class)
+	static class RawJson {
+		private final String json;
+
+		RawJson(String json) {
+			this.json = json;
+		}
+
+		static class Writer extends JsonSerializer<RawJson> {
+			@Override
+			public void serialize(RawJson value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+				gen.writeRawValue(value.json);
+			}
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package uk.ac.rdg.resc.edal.json;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import org.opengis.metadata.extent.GeographicBoundingBox;
+import org.restlet.data.Reference;
+import org.restlet.data.Status;
+import org.restlet.representation.ByteArrayRepresentation;
+import org.restlet.representation.Representation;
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.feature.GridFeature;
+import uk.ac.rdg.resc.edal.feature.ProfileFeature;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.json.CoverageResource.FeatureMetadata;
+
+/**
+ * The coverage outlines of a dataset as Mapbox Vector Tiles in the Web Mercator tiling scheme,
+ * such that map clients only load the outlines in view instead of the whole GeoJSON collection.
+ *
+ * Profiles are points, grids are their bounding box (or a point if the box is tiny at that zoom level).
+ * Below {@link #CLUSTER_MAX_ZOOM} nearby points are merged into a single point with a "count" property.
+ * Encoded tiles are cached.
+ *
+ */
+public class OutlineTilesResource extends ServerResource {
+
+	static final int MAX_ZOOM = 24;
+
+	/**
+	 * Points are clustered on zoom levels below this one,
+	 * can be set with the system property edal.json.tileClusterMaxZoom.
+	 */
+	static final int CLUSTER_MAX_ZOOM = Integer.getInteger("edal.json.tileClusterMaxZoom", 12);
+
+	/**
+	 * Maximum size of all cached tiles in MiB,
+	 * can be set with the system property edal.json.tileCacheSize.
+	 */
+	static final int TILE_CACHE_SIZE = Integer.getInteger("edal.json.tileCacheSize", 64);
+
+	// in tile units, giving 16x16 clusters per tile
+	private static final int CLUSTER_CELL_SIZE = 256;
+
+	// boxes are drawn slightly beyond the tile to avoid seams
+	private static final int BUFFER = 64;
+
+	// boxes smaller than this in both directions are drawn as points
+	private static final int MIN_BOX_SIZE = 4;
+
+	private static final double MAX_MERCATOR_LAT = 85.0511287798;
+
+	private static final Cache<String,byte[]> tileCache = CacheBuilder.newBuilder()
+			.maximumWeight(TILE_CACHE_SIZE * 1024L * 1024L)
+			.weigher((String key, byte[] tile) -> tile.length)
+			.build();
+
+	private static class Cluster {
+		int ordinal;
+		FeatureMetadata meta;
+		int count;
+		double sumX, sumY;
+	}
+
+	@Get("mvt")
+	public Representation mvt() throws IOException, EdalException {
+		String datasetId = Reference.decode(getAttribute("datasetId"));
+		int z, x, y;
+		try {
+			z = Integer.parseInt(getAttribute("z"));
+			x = Integer.parseInt(getAttribute("x"));
+			// the extension is normally removed by the tunnel service already
+			y = Integer.parseInt(getAttribute("y").replace(".mvt", ""));
+			if (z < 0 || z > MAX_ZOOM || x < 0 || x >= 1 << z || y < 0 || y >= 1 << z) {
+				throw new IllegalArgumentException("Tile " + z + "/" + x + "/" + y + " does not exist");
+			}
+		} catch (IllegalArgumentException e) {
+			setStatus(Status.CLIENT_ERROR_NOT_FOUND);
+			return App.getErrorRepresentation(e);
+		}
+
+		String rootUri = getRootRef().toString();
+		// cached tiles of an older version of the dataset file are never hit again
+		String key = rootUri + " " + datasetId + "@" + MetadataStore.getSourceVersion(datasetId) + "/" + z + "/" + x + "/" + y;
+		byte[] tile;
+		try {
+			tile = tileCache.get(key, () -> createTile(datasetId, rootUri, z, x, y));
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			Throwables.propagateIfPossible(e.getCause(), IOException.class, EdalException.class);
+			throw new RuntimeException(e.getCause());
+		}
+		return new ByteArrayRepresentation(tile, App.MVT);
+	}
+
+	static byte[] createTile(String datasetId, String rootUri, int z, int x, int y) throws IOException, EdalException {
+		DatasetMetadata datasetMeta = DatasetResource.getDatasetMetadata(datasetId);
+		FeatureIndex index = datasetMeta.getFeatureIndex();
+		int n = 1 << z;
+
+		double buffer = (double) BUFFER / VectorTileEncoder.EXTENT;
+		double west = Math.max(-180, toLon(x - buffer, n));
+		double east = Math.min(180, toLon(x + 1 + buffer, n));
+		// the first and last row also cover the poles which are outside of Web Mercator
+		double north = y == 0 ? 90 : toLat(y - buffer, n);
+		double south = y == n-1 ? -90 : toLat(y + 1 + buffer, n);
+		BitSet candidates = index.query(west, south, east, north);
+
+		boolean cluster = z < CLUSTER_MAX_ZOOM;
+		int cellsPerSide = VectorTileEncoder.EXTENT / CLUSTER_CELL_SIZE;
+		Map<Integer,Cluster> clusters = new LinkedHashMap<>();
+		VectorTileEncoder tile = new VectorTileEncoder("outlines");
+
+		for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i+1)) {
+			FeatureMetadata meta = datasetMeta.getFeatureMetadata(index.getFeatureId(i));
+			BoundingBox bb = meta.domainMeta.getBoundingBox();
+
+			if (meta.type.isAssignableFrom(ProfileFeature.class)) {
+				double px = toTileX(bb.getMinX(), n, x);
+				double py = toTileY(bb.getMinY(), n, y);
+				// points are only drawn by the tile containing them, otherwise clusters would be duplicated
+				if (px < 0 || px >= VectorTileEncoder.EXTENT || py < 0 || py >= VectorTileEncoder.EXTENT) {
+					continue;
+				}
+				if (cluster) {
+					int cell = (int) (py / CLUSTER_CELL_SIZE) * cellsPerSide + (int) (px / CLUSTER_CELL_SIZE);
+					Cluster c = clusters.computeIfAbsent(cell, k -> new Cluster());
+					if (c.count == 0) {
+						c.ordinal = i;
+						c.meta = meta;
+					}
+					c.count++;
+					c.sumX += px;
+					c.sumY += py;
+				} else {
+					tile.addPoint(i, (int) px, (int) py, getProperties(meta, rootUri));
+				}
+			} else if (meta.type.isAssignableFrom(GridFeature.class)) {
+				for (GeographicBoundingBox box : new DatelineBoundingBox(bb).getSplitBoxes()) {
+					addBox(tile, i, meta, box, n, x, y, rootUri);
+				}
+			}
+		}
+
+		for (Cluster c : clusters.values()) {
+			int px = (int) (c.sumX / c.count);
+			int py = (int) (c.sumY / c.count);
+			if (c.count == 1) {
+				tile.addPoint(c.ordinal, px, py, getProperties(c.meta, rootUri));
+			} else {
+				Map<String,Object> props = new LinkedHashMap<>();
+				props.put("count", c.count);
+				tile.addPoint(c.ordinal, px, py, props);
+			}
+		}
+		return tile.encode();
+	}
+
+	private static void addBox(VectorTileEncoder tile, int ordinal, FeatureMetadata meta, GeographicBoundingBox box,
+			int n, int x, int y, String rootUri) {
+		double minX = toTileX(box.getWestBoundLongitude(), n, x);
+		double maxX = toTileX(box.getEastBoundLongitude(), n, x);
+		double minY = toTileY(box.getNorthBoundLatitude(), n, y);
+		double maxY = toTileY(box.getSouthBoundLatitude(), n, y);
+
+		if (maxX - minX < MIN_BOX_SIZE && maxY - minY < MIN_BOX_SIZE) {
+			double px = (minX + maxX) / 2;
+			double py = (minY + maxY) / 2;
+			if (px >= 0 && px < VectorTileEncoder.EXTENT && py >= 0 && py < VectorTileEncoder.EXTENT) {
+				tile.addPoint(ordinal, (int) px, (int) py, getProperties(meta, rootUri));
+			}
+			return;
+		}
+
+		int lo = -BUFFER;
+		int hi = VectorTileEncoder.EXTENT + BUFFER;
+		int x0 = (int) Math.round(clamp(minX, lo, hi));
+		int x1 = (int) Math.round(clamp(maxX, lo, hi));
+		int y0 = (int) Math.round(clamp(minY, lo, hi));
+		int y1 = (int) Math.round(clamp(maxY, lo, hi));
+		if (x0 < x1 && y0 < y1) {
+			tile.addBox(ordinal, x0, y0, x1, y1, getProperties(meta, rootUri));
+		}
+	}
+
+	private static Map<String,Object> getProperties(FeatureMetadata meta, String rootUri) {
+		Map<String,Object> props = new LinkedHashMap<>();
+		props.put("domainType", FeatureTypes.getName(meta.type));
+		if (meta.name != null) {
+			props.put("title", meta.name);
+		}
+		props.put("coverage", rootUri + "/datasets/" + meta.datasetId + "/coverages/" + meta.featureId);
+		return props;
+	}
+
+	private static double toTileX(double lon, int n, int x) {
+		return ((lon + 180) / 360 * n - x) * VectorTileEncoder.EXTENT;
+	}
+
+	private static double toTileY(double lat, int n, int y) {
+		double rad = Math.toRadians(clamp(lat, -MAX_MERCATOR_LAT, MAX_MERCATOR_LAT));
+		double merc = (1 - Math.log(Math.tan(rad) + 1 / Math.cos(rad)) / Math.PI) / 2;
+		return (merc * n - y) * VectorTileEncoder.EXTENT;
+	}
+
+	static double toLon(double tileX, int n) {
+		return tileX / n * 360 - 180;
+	}
+
+	static double toLat(double tileY, int n) {
+		return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * tileY / n))));
+	}
+
+	private static double clamp(double val, double min, double max) {
+		return Math.max(min, Math.min(max, val));
+	}
+}
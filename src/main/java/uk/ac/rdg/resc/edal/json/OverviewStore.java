@@ -0,0 +1,311 @@
+package uk.ac.rdg.resc.edal.json;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import uk.ac.rdg.resc.edal.dataset.Dataset;
+import uk.ac.rdg.resc.edal.dataset.GridDataSource;
+import uk.ac.rdg.resc.edal.json.CoverageRangeResource.AxesIndices;
+import uk.ac.rdg.resc.edal.json.CoverageResource.UniformFeature;
+import uk.ac.rdg.resc.edal.util.Array4D;
+
+/**
+ * Decimated copies of gridded variables on disk, used for range requests with a
+ * {@link SubsetConstraint#stride} such that a low resolution view doesn't read
+ * every cell of the native resolution grid.
+ *
+ * Overview level L contains every L-th cell of the horizontal axes for all times and
+ * vertical levels, with L being a power of two. A stride is served from the largest
+ * level dividing it. Levels are built in the background on first use, meanwhile the
+ * native resolution is read instead. Values are stored as 32-bit floats, NaN being missing.
+ *
+ * Like {@link MetadataStore}, a stored level is only used if the dataset source file is unchanged,
+ * this is checked again whenever an already opened level is read.
+ *
+ */
+final class OverviewStore {
+
+	/**
+	 * Folder where overview levels are stored,
+	 * can be set with the system property edal.json.overviewDir.
+	 * An empty value disables overviews.
+	 */
+	static final String OVERVIEW_DIR = System.getProperty("edal.json.overviewDir",
+			new File(System.getProperty("java.io.tmpdir"), "edal-json-overviews").getPath());
+
+	static final int MAX_LEVEL = 64;
+
+	private static final int MAGIC = 0x45444a4f; // "EDJO"
+	private static final int VERSION = 1;
+
+	private static final ExecutorService BUILD_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "overview-build");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private static final Set<File> building = ConcurrentHashMap.newKeySet();
+	// not retried until restart
+	private static final Set<File> failed = ConcurrentHashMap.newKeySet();
+
+	// mapped levels, keyed by file
+	private static final Cache<File,Overview> overviews = CacheBuilder.newBuilder()
+			.maximumSize(100)
+			.expireAfterAccess(1, TimeUnit.HOURS)
+			.build();
+
+	private static class Overview {
+		final FloatBuffer values;
+		final int level;
+		final int nz, ny, nx;
+		final long sourceLength, sourceModified;
+
+		Overview(FloatBuffer values, int level, int nz, int ny, int nx, long sourceLength, long sourceModified) {
+			this.values = values;
+			this.level = level;
+			this.nz = nz;
+			this.ny = ny;
+			this.nx = nx;
+			this.sourceLength = sourceLength;
+			this.sourceModified = sourceModified;
+		}
+
+		boolean isOf(File source) {
+			return source.length() == sourceLength && source.lastModified() == sourceModified;
+		}
+
+		float get(int t, int z, int y, int x) {
+			long i = (((long) t * nz + z) * ny + y / level) * nx + x / level;
+			return values.get((int) i);
+		}
+	}
+
+	private OverviewStore() {
+	}
+
+	/**
+	 * Returns the values of the given strided axes indices from an overview level,
+	 * addressed with the indices of the full variable. If the level doesn't exist yet,
+	 * it is built in the background.
+	 *
+	 * @return null if no overview level can be used (yet)
+	 */
+	static Array4D<Number> read(Dataset dataset, String variableId, UniformFeature uniFeature, AxesIndices ind) {
+		return read(dataset, variableId, uniFeature, ind, true);
+	}
+
+	/**
+	 * Like {@link #read(Dataset, String, UniformFeature, AxesIndices)}, but only uses levels
+	 * which were built already and never schedules a build.
+	 */
+	static Array4D<Number> readExisting(Dataset dataset, String variableId, UniformFeature uniFeature, AxesIndices ind) {
+		return read(dataset, variableId, uniFeature, ind, false);
+	}
+
+	private static Array4D<Number> read(Dataset dataset, String variableId, UniformFeature uniFeature,
+			AxesIndices ind, boolean build) {
+		int level = getLevel(ind);
+		if (level == 1 || OVERVIEW_DIR.isEmpty()) {
+			return null;
+		}
+		File source = MetadataStore.getSourceFile(dataset.getId());
+		if (source == null) {
+			return null;
+		}
+		File file = getFile(dataset.getId(), variableId, level);
+		Overview overview = overviews.getIfPresent(file);
+		if (overview != null && !overview.isOf(source)) {
+			// the dataset changed since the level was opened
+			overviews.invalidate(file);
+			overview = null;
+		}
+		if (overview == null) {
+			overview = open(file, source);
+			if (overview == null) {
+				if (build) {
+					scheduleBuild(dataset, variableId, uniFeature, level, file, source);
+				}
+				return null;
+			}
+			overviews.put(file, overview);
+		}
+
+		int[] shape = uniFeature.getShape();
+		Overview o = overview;
+		return new Array4D<Number>(shape[0], shape[1], shape[2], shape[3]) {
+			@Override
+			public Number get(int... coords) {
+				float val = o.get(coords[0], coords[1], coords[2], coords[3]);
+				return Float.isNaN(val) ? null : val;
+			}
+			@Override
+			public void set(Number value, int... coords) {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * @return the largest power of two dividing the step and start of both horizontal axes,
+	 *         at most {@link #MAX_LEVEL}
+	 */
+	private static int getLevel(AxesIndices ind) {
+		int level = MAX_LEVEL;
+		while (level > 1 && (!isOnLevel(ind.x, level) || !isOnLevel(ind.y, level))) {
+			level /= 2;
+		}
+		return level;
+	}
+
+	private static boolean isOnLevel(IndexRange indices, int level) {
+		return indices.getStep() % level == 0 && indices.getFirst() % level == 0;
+	}
+
+	private static Overview open(File file, File source) {
+		if (!file.isFile()) {
+			return null;
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			byte[] path = source.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+			if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+				return null;
+			}
+			byte[] storedPath = new byte[buf.getInt()];
+			buf.get(storedPath);
+			long sourceLength = buf.getLong();
+			long sourceModified = buf.getLong();
+			if (!Arrays.equals(path, storedPath) ||
+					sourceLength != source.length() || sourceModified != source.lastModified()) {
+				return null;
+			}
+			int level = buf.getInt();
+			buf.getInt(); // nt
+			int nz = buf.getInt();
+			int ny = buf.getInt();
+			int nx = buf.getInt();
+			// the mapping stays valid after closing the channel
+			return new Overview(buf.slice().asFloatBuffer(), level, nz, ny, nx, sourceLength, sourceModified);
+		} catch (IOException e) {
+			System.err.println("Ignoring unreadable overview file " + file);
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private static void scheduleBuild(Dataset dataset, String variableId, UniformFeature uniFeature,
+			int level, File file, File source) {
+		if (failed.contains(file) || !building.add(file)) {
+			return;
+		}
+		// the dataset must stay open until the build is done, even if evicted from the cache meanwhile
+		Utils.retainDataset(dataset.getId());
+		BUILD_EXECUTOR.submit(() -> {
+			try {
+				build(dataset, variableId, uniFeature, level, file, source);
+			} catch (Exception e) {
+				failed.add(file);
+				System.err.println("Could not build overview " + file);
+				e.printStackTrace();
+			} finally {
+				building.remove(file);
+				Utils.releaseDataset(dataset.getId());
+			}
+		});
+	}
+
+	/**
+	 * Reads every level-th row of the variable and keeps every level-th value of it.
+	 */
+	private static void build(Dataset dataset, String variableId, UniformFeature uniFeature,
+			int level, File file, File source) throws IOException {
+		int[] shape = uniFeature.getShape();
+		int nt = shape[0], nz = shape[1];
+		int ny = (shape[2] + level - 1) / level;
+		int nx = (shape[3] + level - 1) / level;
+		// files are memory-mapped which is limited to 2GB
+		if ((long) nt * nz * ny * nx * 4 > Integer.MAX_VALUE) {
+			throw new IOException("Overview too big");
+		}
+
+		Files.createDirectories(file.getParentFile().toPath());
+		Path tmp = Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp");
+		// opened once for all rows
+		GridDataSource dataSource = null;
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+			dataSource = GridSubsetReader.openDataSource(dataset);
+			if (dataSource == null) {
+				throw new IOException("Dataset does not support bounded reads");
+			}
+			byte[] path = source.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(path.length);
+			out.write(path);
+			out.writeLong(source.length());
+			out.writeLong(source.lastModified());
+			out.writeInt(level);
+			out.writeInt(nt);
+			out.writeInt(nz);
+			out.writeInt(ny);
+			out.writeInt(nx);
+
+			IndexRange columns = IndexRange.of(0, shape[3]-1).withStride(level);
+			for (int t=0; t < nt; t++) {
+				for (int z=0; z < nz; z++) {
+					for (int y=0; y < ny; y++) {
+						AxesIndices row = new AxesIndices();
+						row.t = IndexRange.single(t);
+						row.z = IndexRange.single(z);
+						row.y = IndexRange.single(y * level);
+						row.x = IndexRange.of(0, shape[3]-1);
+						Array4D<Number> vals = GridSubsetReader.read(dataSource, variableId, row, shape);
+						for (int i=0; i < columns.size(); i++) {
+							Number val = vals.get(t, z, y * level, columns.get(i));
+							out.writeFloat(val == null ? Float.NaN : val.floatValue());
+						}
+					}
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(tmp);
+			throw e;
+		} finally {
+			if (dataSource != null) {
+				GridSubsetReader.close(dataSource);
+			}
+		}
+		Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static File getFile(String datasetId, String variableId, int level) {
+		try {
+			String name = URLEncoder.encode(datasetId, "UTF-8") + "." + URLEncoder.encode(variableId, "UTF-8");
+			return new File(OVERVIEW_DIR, name + "." + level + ".ovr");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -1,68 +1,331 @@
 package uk.ac.rdg.resc.edal.json;
 
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.stream.LongStream;
 
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import uk.ac.rdg.resc.edal.dataset.Dataset;
+import uk.ac.rdg.resc.edal.dataset.GridDataSource;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.feature.DiscreteFeature;
 import uk.ac.rdg.resc.edal.feature.Feature;
+import uk.ac.rdg.resc.edal.json.CoverageRangeResource.AxesIndices;
+import uk.ac.rdg.resc.edal.json.CoverageResource.UniformFeature;
 import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.metadata.VariableMetadata;
 import uk.ac.rdg.resc.edal.util.Array;
+import uk.ac.rdg.resc.edal.util.Array4D;
 
+/**
+ * Parameters of a feature and their value statistics.
+ *
+ * Statistics are not computed when the metadata is extracted but on first
+ * access of a parameter. Variables of grids are read with bounded reads (see {@link GridSubsetReader}),
+ * sampling every n-th index of each axis for approximate statistics, or from an already built
+ * overview level (see {@link OverviewStore}). Other features are read again as a whole and their
+ * values reduced in parallel. Results are cached and persisted with the other metadata
+ * (see {@link MetadataStore}), concurrent requests for the same parameter wait for a single computation.
+ */
 public class RangeMetadata {
-	
-	private Map<String,Parameter> params;
-	private Map<Parameter,Double> minValues = new HashMap<>();
-	private Map<Parameter,Double> maxValues = new HashMap<>();
-	
-	public RangeMetadata(Feature<?> feature) {
-		extractMetadata(feature);
-	}
-
-	private void extractMetadata(Feature<?> feature) {
-		params = feature.getParameterMap();
-		
-		if (feature instanceof DiscreteFeature) {
-			DiscreteFeature<?,?> discreteFeature = (DiscreteFeature<?,?>) feature;
-			for (Parameter param : params.values()) {
-				Array<Number> vals = discreteFeature.getValues(param.getVariableId());
-				double min = Double.POSITIVE_INFINITY;
-				double max = Double.NEGATIVE_INFINITY;
-				for (Number val : vals) {
-					if (val == null) continue;
-					double v = val.doubleValue();
-					if (v < min) {
-						min = v;
-					} 
-					if (v > max) {
-						max = v;
-					}
-				}
-				minValues.put(param, min);
-				maxValues.put(param, max);
-			}
+
+	/**
+	 * Approximate statistics use at most this many evenly spaced values.
+	 */
+	static final int MAX_SAMPLES = 1000000;
+
+	private static final int BLOCK_SIZE = 64 * 1024;
+
+	/**
+	 * Minimum and maximum of the non-missing values of a parameter.
+	 * Both are NaN if all values are missing.
+	 */
+	public static class Statistics {
+		public final double min;
+		public final double max;
+		/**
+		 * true if the statistics were computed from a sample of the values only
+		 */
+		public final boolean approximate;
+
+		Statistics(double min, double max, boolean approximate) {
+			this.min = min;
+			this.max = max;
+			this.approximate = approximate;
+		}
+	}
+
+	private final String datasetId;
+	private final String featureId;
+	private final Map<String,Parameter> params;
+	private final LoadingCache<Parameter,Statistics> exactStats = CacheBuilder.newBuilder()
+			.build(CacheLoader.from(p -> computeStatistics(p, Long.MAX_VALUE)));
+	private final LoadingCache<Parameter,Statistics> approximateStats = CacheBuilder.newBuilder()
+			.build(CacheLoader.from(p -> computeStatistics(p, MAX_SAMPLES)));
+
+	public RangeMetadata(String datasetId, Feature<?> feature) {
+		this.datasetId = datasetId;
+		this.featureId = feature.getId();
+		this.params = feature.getParameterMap();
+	}
+
+	/**
+	 * Restores previously extracted metadata, see {@link MetadataStore}.
+	 */
+	RangeMetadata(String datasetId, String featureId, Map<String,Parameter> params, Map<Parameter,Statistics> stats) {
+		this.datasetId = datasetId;
+		this.featureId = featureId;
+		this.params = params;
+		for (Map.Entry<Parameter,Statistics> entry : stats.entrySet()) {
+			(entry.getValue().approximate ? approximateStats : exactStats).put(entry.getKey(), entry.getValue());
 		}
 	}
 
 	public Set<String> getParameterIds() {
 		return params.keySet();
 	}
-	
+
 	public Parameter getParameter(String paramId) {
 		return params.get(paramId);
 	}
-	
+
 	public Collection<Parameter> getParameters() {
 		return params.values();
 	}
-	
+
 	public double getMinValue(Parameter param) {
-		return minValues.get(param);
+		return getStatistics(param, false).min;
 	}
-	
+
 	public double getMaxValue(Parameter param) {
-		return maxValues.get(param);
+		return getStatistics(param, false).max;
+	}
+
+	/**
+	 * Returns the statistics of a parameter, computing them on first access.
+	 *
+	 * @param approximate whether statistics from a sample of at most {@link #MAX_SAMPLES}
+	 *                    values are good enough, exact statistics are returned if already known
+	 */
+	public Statistics getStatistics(Parameter param, boolean approximate) {
+		Statistics stats = exactStats.getIfPresent(param);
+		if (stats != null) {
+			return stats;
+		}
+		try {
+			return (approximate ? approximateStats : exactStats).getUnchecked(param);
+		} catch (UncheckedExecutionException e) {
+			Throwables.propagateIfPossible(e.getCause());
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the statistics which were already computed, without computing anything.
+	 *
+	 * @return null if no statistics are known yet
+	 */
+	Statistics getCachedStatistics(Parameter param) {
+		Statistics stats = exactStats.getIfPresent(param);
+		return stats != null ? stats : approximateStats.getIfPresent(param);
+	}
+
+	private Statistics computeStatistics(Parameter param, long maxSamples) {
+		Statistics stats = doComputeStatistics(param, maxSamples);
+		// the store contains the statistics known when it was written
+		MetadataStore.scheduleWrite(datasetId);
+		return stats;
+	}
+
+	private Statistics doComputeStatistics(Parameter param, long maxSamples) {
+		Dataset dataset = Utils.getDataset(datasetId);
+		Statistics stats = computeGridStatistics(dataset, param, maxSamples);
+		if (stats != null) {
+			return stats;
+		}
+		Feature<?> feature;
+		try (Metrics.Timer timer = Metrics.time(Metrics.Phase.READ)) {
+			feature = dataset.readFeature(featureId);
+		}
+		if (!(feature instanceof DiscreteFeature)) {
+			throw new UnsupportedOperationException("Only discrete features are supported");
+		}
+		Array<Number> vals = ((DiscreteFeature<?,?>) feature).getValues(param.getVariableId());
+		return reduce(vals, maxSamples);
+	}
+
+	/**
+	 * Computes the statistics of a grid variable without reading the whole feature.
+	 * If the variable has more than maxSamples values, only the indices of each axis which
+	 * are a multiple of a power of two stride are considered, read from an existing overview level
+	 * if possible and otherwise row by row.
+	 *
+	 * @return null if the parameter is not a grid variable of the feature
+	 *         or the dataset does not support bounded reads
+	 */
+	private Statistics computeGridStatistics(Dataset dataset, Parameter param, long maxSamples) {
+		String variableId = param.getVariableId();
+		VariableMetadata varMeta;
+		try {
+			varMeta = dataset.getVariableMetadata(variableId);
+		} catch (EdalException e) {
+			return null;
+		}
+		if (!GridSubsetReader.isVariableOfFeature(varMeta, featureId)) {
+			return null;
+		}
+		UniformFeature uniFeature = UniformFeature.fromGridVariable(varMeta);
+		if (uniFeature == null) {
+			return null;
+		}
+		int[] shape = uniFeature.getShape();
+		int stride = getSampleStride(shape, maxSamples);
+		AxesIndices ind = new AxesIndices();
+		ind.t = IndexRange.of(0, shape[0]-1).withStride(stride);
+		ind.z = IndexRange.of(0, shape[1]-1).withStride(stride);
+		ind.y = IndexRange.of(0, shape[2]-1).withStride(stride);
+		ind.x = IndexRange.of(0, shape[3]-1).withStride(stride);
+		double[] minMax = { Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+
+		Array4D<Number> overview = stride == 1 ? null : OverviewStore.readExisting(dataset, variableId, uniFeature, ind);
+		if (overview != null) {
+			for (int t=0; t < ind.t.size(); t++) {
+				for (int z=0; z < ind.z.size(); z++) {
+					for (int y=0; y < ind.y.size(); y++) {
+						addRow(minMax, overview, ind.t.get(t), ind.z.get(z), ind.y.get(y), ind.x);
+					}
+				}
+			}
+		} else {
+			GridDataSource dataSource = GridSubsetReader.openDataSource(dataset);
+			if (dataSource == null) {
+				return null;
+			}
+			try {
+				for (int t=0; t < ind.t.size(); t++) {
+					for (int z=0; z < ind.z.size(); z++) {
+						AxesIndices box = new AxesIndices();
+						box.t = IndexRange.single(ind.t.get(t));
+						box.z = IndexRange.single(ind.z.get(z));
+						box.x = IndexRange.of(0, shape[3]-1);
+						if (stride == 1) {
+							// all rows are needed, read the whole slice at once
+							box.y = ind.y;
+							Array4D<Number> vals = GridSubsetReader.read(dataSource, variableId, box, shape);
+							for (int y=0; y < ind.y.size(); y++) {
+								addRow(minMax, vals, box.t.getFirst(), box.z.getFirst(), ind.y.get(y), ind.x);
+							}
+							continue;
+						}
+						for (int y=0; y < ind.y.size(); y++) {
+							box.y = IndexRange.single(ind.y.get(y));
+							Array4D<Number> vals = GridSubsetReader.read(dataSource, variableId, box, shape);
+							addRow(minMax, vals, box.t.getFirst(), box.z.getFirst(), box.y.getFirst(), ind.x);
+						}
+					}
+				}
+			} finally {
+				GridSubsetReader.close(dataSource);
+			}
+		}
+
+		if (minMax[0] > minMax[1]) {
+			// no values or all missing
+			return new Statistics(Double.NaN, Double.NaN, stride > 1);
+		}
+		return new Statistics(minMax[0], minMax[1], stride > 1);
+	}
+
+	/**
+	 * @return the smallest power of two such that taking every n-th index of each axis
+	 *         leaves at most maxSamples values, powers of two can be served from overview levels
+	 */
+	private static int getSampleStride(int[] shape, long maxSamples) {
+		int stride = 1;
+		while (stride < Integer.MAX_VALUE / 2 && getSampleCount(shape, stride) > maxSamples) {
+			stride *= 2;
+		}
+		return stride;
+	}
+
+	private static long getSampleCount(int[] shape, int stride) {
+		long count = 1;
+		for (int size : shape) {
+			count *= (size + stride - 1) / stride;
+		}
+		return count;
+	}
+
+	private static void addRow(double[] minMax, Array4D<Number> vals, int t, int z, int y, IndexRange columns) {
+		int[] coords = { t, z, y, 0 };
+		for (int i=0; i < columns.size(); i++) {
+			coords[3] = columns.get(i);
+			Number val = vals.get(coords);
+			if (val == null) continue;
+			double v = val.doubleValue();
+			if (v < minMax[0]) {
+				minMax[0] = v;
+			}
+			if (v > minMax[1]) {
+				minMax[1] = v;
+			}
+		}
+	}
+
+	/**
+	 * Computes min and max of the array with a parallel reduction over blocks of
+	 * the flattened array. If the array has more than maxSamples values, then
+	 * only every n-th value is considered.
+	 */
+	static Statistics reduce(Array<Number> vals, long maxSamples) {
+		long size = vals.size();
+		long stride = size <= maxSamples ? 1 : (size + maxSamples - 1) / maxSamples;
+		long samples = (size + stride - 1) / stride;
+		long blocks = (samples + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		int[] shape = vals.getShape();
+
+		double[] minMax = LongStream.range(0, blocks).parallel()
+			.mapToObj(block -> {
+				long from = block * BLOCK_SIZE;
+				long to = Math.min(samples, from + BLOCK_SIZE);
+				double min = Double.POSITIVE_INFINITY;
+				double max = Double.NEGATIVE_INFINITY;
+				int[] coords = new int[shape.length];
+				for (long i = from; i < to; i++) {
+					toCoords(i * stride, shape, coords);
+					Number val = vals.get(coords);
+					if (val == null) continue;
+					double v = val.doubleValue();
+					if (v < min) {
+						min = v;
+					}
+					if (v > max) {
+						max = v;
+					}
+				}
+				return new double[] { min, max };
+			})
+			.reduce(new double[] { Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY },
+				(a, b) -> new double[] { Math.min(a[0], b[0]), Math.max(a[1], b[1]) });
+
+		if (minMax[0] > minMax[1]) {
+			// no values or all missing
+			return new Statistics(Double.NaN, Double.NaN, stride > 1);
+		}
+		return new Statistics(minMax[0], minMax[1], stride > 1);
+	}
+
+	private static void toCoords(long flatIndex, int[] shape, int[] coords) {
+		for (int d = shape.length - 1; d >= 0; d--) {
+			coords[d] = (int) (flatIndex % shape[d]);
+			flatIndex /= shape[d];
+		}
 	}
 
 }
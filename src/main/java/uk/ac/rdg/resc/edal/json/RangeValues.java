@@ -0,0 +1,349 @@
+package uk.ac.rdg.resc.edal.json;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import uk.ac.rdg.resc.edal.json.CoverageRangeResource.AxesIndices;
+import uk.ac.rdg.resc.edal.util.Array4D;
+
+/**
+ * The values of a single range parameter, extracted lazily from the
+ * feature values in t/z/y/x order while being serialized.
+ *
+ * Values are never materialized as a whole. Instead, a fixed-size {@link Chunk}
+ * is filled and handed to the serializer repeatedly, such that memory usage is
+ * bounded by the chunk size and not by the size of the subset.
+ *
+ */
+@JsonSerialize(using = RangeValues.JsonWriter.class)
+class RangeValues {
+
+	static final int CHUNK_SIZE = 64 * 1024;
+
+	enum DataType {
+		FLOAT, DOUBLE, INTEGER, LONG
+	}
+
+	interface ChunkConsumer {
+		void accept(Chunk chunk) throws IOException;
+	}
+
+	private final Array4D<Number> vals4D;
+	private final AxesIndices ind;
+	private final boolean isCategorical;
+	private final long size;
+
+	public RangeValues(Array4D<Number> vals4D, AxesIndices ind, boolean isCategorical) {
+		this.vals4D = vals4D;
+		this.ind = ind;
+		this.isCategorical = isCategorical;
+		this.size = (long) ind.t.size() * ind.z.size() * ind.y.size() * ind.x.size();
+	}
+
+	public long size() {
+		return size;
+	}
+
+	public boolean isCategorical() {
+		return isCategorical;
+	}
+
+	public void forEachChunk(ChunkConsumer consumer) throws IOException {
+		forEachChunk(CHUNK_SIZE, consumer);
+	}
+
+	/**
+	 * Walks the axes indices in t/z/y/x order and passes the values to the consumer
+	 * in chunks of at most chunkSize values. The same Chunk object is reused
+	 * for every call and must not be retained by the consumer.
+	 */
+	public void forEachChunk(int chunkSize, ChunkConsumer consumer) throws IOException {
+		Chunk chunk = new Chunk((int) Math.min(chunkSize, Math.max(size, 1)), isCategorical);
+		// a single coordinate array is reused for all cells to avoid allocating one per varargs call
+		int[] coords = new int[4];
+		for (int t=0; t < ind.t.size(); t++) {
+			coords[0] = ind.t.get(t);
+			for (int z=0; z < ind.z.size(); z++) {
+				coords[1] = ind.z.get(z);
+				for (int y=0; y < ind.y.size(); y++) {
+					coords[2] = ind.y.get(y);
+					for (int x=0; x < ind.x.size(); x++) {
+						coords[3] = ind.x.get(x);
+						chunk.add(vals4D.get(coords));
+						if (chunk.isFull()) {
+							consumer.accept(chunk);
+							chunk.clear();
+						}
+					}
+				}
+			}
+		}
+		if (chunk.length() > 0) {
+			consumer.accept(chunk);
+		}
+	}
+
+	/**
+	 * A window of range values stored in a primitive array.
+	 * Missing values are recorded in a separate bitmap instead of being boxed as null.
+	 *
+	 * The buffer type is chosen from the first value the source array delivers:
+	 * integral values are stored as integer or long, floats as float, and anything else as double.
+	 * If a later value does not fit, the buffer is promoted such that no precision is lost.
+	 * Categorical parameters are always stored as integers.
+	 */
+	static class Chunk {
+		private final int capacity;
+		private final BitSet missing;
+		private final boolean isCategorical;
+		private int length;
+		private DataType dataType;
+		// whether the buffer type has been chosen from a value yet
+		private boolean isTyped;
+		private float[] floatValues;
+		private double[] doubleValues;
+		private int[] intValues;
+		private long[] longValues;
+
+		Chunk(int capacity, boolean isCategorical) {
+			this.capacity = capacity;
+			this.missing = new BitSet(capacity);
+			this.isCategorical = isCategorical;
+			if (isCategorical) {
+				dataType = DataType.INTEGER;
+				intValues = new int[capacity];
+				isTyped = true;
+			} else {
+				dataType = DataType.FLOAT;
+				floatValues = new float[capacity];
+			}
+		}
+
+		void add(Number val) {
+			int i = length++;
+			if (val == null) {
+				missing.set(i);
+				return;
+			}
+			if (!isTyped) {
+				chooseType(val);
+			}
+			switch (dataType) {
+			case INTEGER:
+				if (isCategorical || isInt(val)) {
+					intValues[i] = val.intValue();
+				} else if (val instanceof Long) {
+					promoteToLong();
+					longValues[i] = val.longValue();
+				} else {
+					promoteToDouble();
+					doubleValues[i] = val.doubleValue();
+				}
+				break;
+			case LONG:
+				if (isInt(val) || val instanceof Long) {
+					longValues[i] = val.longValue();
+				} else {
+					promoteToDouble();
+					doubleValues[i] = val.doubleValue();
+				}
+				break;
+			case FLOAT:
+				if (val instanceof Double) {
+					promoteToDouble();
+					doubleValues[i] = val.doubleValue();
+				} else {
+					floatValues[i] = val.floatValue();
+				}
+				break;
+			case DOUBLE:
+				doubleValues[i] = val.doubleValue();
+				break;
+			}
+		}
+
+		private static boolean isInt(Number val) {
+			return val instanceof Integer || val instanceof Short || val instanceof Byte;
+		}
+
+		private void chooseType(Number val) {
+			isTyped = true;
+			if (val instanceof Float) {
+				return;
+			}
+			// only missing values were added so far, nothing to copy
+			floatValues = null;
+			if (isInt(val)) {
+				dataType = DataType.INTEGER;
+				intValues = new int[capacity];
+			} else if (val instanceof Long) {
+				dataType = DataType.LONG;
+				longValues = new long[capacity];
+			} else {
+				dataType = DataType.DOUBLE;
+				doubleValues = new double[capacity];
+			}
+		}
+
+		private void promoteToLong() {
+			longValues = new long[capacity];
+			for (int i=0; i < length; i++) {
+				longValues[i] = intValues[i];
+			}
+			intValues = null;
+			dataType = DataType.LONG;
+		}
+
+		private void promoteToDouble() {
+			doubleValues = new double[capacity];
+			for (int i=0; i < length; i++) {
+				switch (dataType) {
+				case INTEGER: doubleValues[i] = intValues[i]; break;
+				case LONG: doubleValues[i] = longValues[i]; break;
+				case FLOAT: doubleValues[i] = floatValues[i]; break;
+				default: throw new IllegalStateException();
+				}
+			}
+			floatValues = null;
+			intValues = null;
+			longValues = null;
+			dataType = DataType.DOUBLE;
+		}
+
+		boolean isFull() {
+			return length == capacity;
+		}
+
+		void clear() {
+			length = 0;
+			missing.clear();
+		}
+
+		public int length() {
+			return length;
+		}
+
+		public DataType getDataType() {
+			return dataType;
+		}
+
+		public boolean isMissing(int i) {
+			return missing.get(i);
+		}
+
+		/**
+		 * @return null if the values are not stored as float
+		 */
+		public float[] getFloatValues() {
+			return floatValues;
+		}
+
+		/**
+		 * @return null if the values are not stored as double
+		 */
+		public double[] getDoubleValues() {
+			return doubleValues;
+		}
+
+		/**
+		 * @return null if the values are not stored as integer
+		 */
+		public int[] getIntValues() {
+			return intValues;
+		}
+
+		/**
+		 * @return null if the values are not stored as long
+		 */
+		public long[] getLongValues() {
+			return longValues;
+		}
+
+		/**
+		 * Bulk-writes the values as float32 into the buffer using its byte order.
+		 * Missing values are written as NaN, other types are converted to float.
+		 */
+		public void putFloat32(ByteBuffer buffer) {
+			int start = buffer.position();
+			if (dataType == DataType.FLOAT) {
+				TypedArray.put(buffer, floatValues, length);
+			} else if (dataType == DataType.DOUBLE) {
+				for (int i=0; i < length; i++) {
+					buffer.putFloat((float) doubleValues[i]);
+				}
+			} else if (dataType == DataType.LONG) {
+				for (int i=0; i < length; i++) {
+					buffer.putFloat(longValues[i]);
+				}
+			} else {
+				for (int i=0; i < length; i++) {
+					buffer.putFloat(intValues[i]);
+				}
+			}
+			for (int i = missing.nextSetBit(0); i >= 0; i = missing.nextSetBit(i+1)) {
+				buffer.putFloat(start + i * 4, Float.NaN);
+			}
+		}
+
+		/**
+		 * Bulk-writes the values of a categorical chunk as int32 into the buffer using its byte order.
+		 */
+		public void putInt32(ByteBuffer buffer, int missingValue) {
+			if (dataType != DataType.INTEGER) {
+				throw new IllegalStateException("not an integer chunk");
+			}
+			int start = buffer.position();
+			TypedArray.put(buffer, intValues, length);
+			for (int i = missing.nextSetBit(0); i >= 0; i = missing.nextSetBit(i+1)) {
+				buffer.putInt(start + i * 4, missingValue);
+			}
+		}
+
+		/**
+		 * Boxed access, only meant for serializers which cannot handle primitives.
+		 */
+		public Number get(int i) {
+			if (missing.get(i)) {
+				return null;
+			}
+			switch (dataType) {
+			case INTEGER: return intValues[i];
+			case FLOAT: return floatValues[i];
+			case DOUBLE: return doubleValues[i];
+			case LONG: return longValues[i];
+			default: throw new IllegalStateException();
+			}
+		}
+	}
+
+	/**
+	 * Writes the values as JSON array directly from the primitive buffers.
+	 */
+	static class JsonWriter extends JsonSerializer<RangeValues> {
+		@Override
+		public void serialize(RangeValues vals, JsonGenerator gen, SerializerProvider provider) throws IOException {
+			gen.writeStartArray();
+			vals.forEachChunk(chunk -> {
+				for (int i=0; i < chunk.length; i++) {
+					if (chunk.missing.get(i)) {
+						gen.writeNull();
+						continue;
+					}
+					switch (chunk.dataType) {
+					case INTEGER: gen.writeNumber(chunk.intValues[i]); break;
+					case FLOAT: gen.writeNumber(chunk.floatValues[i]); break;
+					case DOUBLE: gen.writeNumber(chunk.doubleValues[i]); break;
+					case LONG: gen.writeNumber(chunk.longValues[i]); break;
+					}
+				}
+			});
+			gen.writeEndArray();
+		}
+	}
+}
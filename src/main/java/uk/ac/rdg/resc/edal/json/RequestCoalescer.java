@@ -0,0 +1,79 @@
+package uk.ac.rdg.resc.edal.json;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.restlet.data.Tag;
+
+import uk.ac.rdg.resc.edal.json.ResponseCache.Entry;
+
+/**
+ * Deduplicates concurrent identical requests, keyed by their entity tag (see {@link EntityTags}).
+ *
+ * The first request (the leader) is handled normally while its serialized response is captured.
+ * Identical requests arriving meanwhile (the followers) wait for the leader and are answered
+ * with a copy of its bytes as soon as it is serialized, before it is sent to the leader's client,
+ * such that a burst of requests for a new dataset only reads and serializes each coverage once.
+ *
+ * If the leader fails or its response is too big to be captured, the followers are handled normally.
+ *
+ */
+final class RequestCoalescer {
+
+	/**
+	 * Maximum time in seconds that a request waits for an identical one in flight,
+	 * can be set with the system property edal.json.coalesceTimeout. 0 disables coalescing.
+	 */
+	static final int WAIT_TIMEOUT = Integer.getInteger("edal.json.coalesceTimeout", 60);
+
+	private static final ConcurrentMap<String,CompletableFuture<Entry>> inFlight = new ConcurrentHashMap<>();
+
+	private RequestCoalescer() {
+	}
+
+	static boolean isEnabled() {
+		return WAIT_TIMEOUT > 0;
+	}
+
+	/**
+	 * Registers a request as leader if no identical request is in flight.
+	 * A leader must call {@link #complete(Tag, Entry)} once its response is serialized.
+	 *
+	 * @return null if the request is the leader, otherwise the result of the leader
+	 */
+	static CompletableFuture<Entry> join(Tag tag) {
+		return inFlight.putIfAbsent(tag.getName(), new CompletableFuture<>());
+	}
+
+	/**
+	 * Waits for the leader of an identical request.
+	 *
+	 * @return null if the leader had no captured response or took too long
+	 */
+	static Entry await(CompletableFuture<Entry> leader) {
+		try {
+			return leader.get(WAIT_TIMEOUT, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException | TimeoutException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Releases the followers of a leader.
+	 *
+	 * @param entry the captured response of the leader, or null if there is none
+	 */
+	static void complete(Tag tag, Entry entry) {
+		CompletableFuture<Entry> future = inFlight.remove(tag.getName());
+		if (future != null) {
+			future.complete(entry);
+		}
+	}
+}
@@ -0,0 +1,334 @@
+package uk.ac.rdg.resc.edal.json;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.zip.GZIPOutputStream;
+
+import org.restlet.Response;
+import org.restlet.data.CharacterSet;
+import org.restlet.data.Dimension;
+import org.restlet.data.Encoding;
+import org.restlet.data.Header;
+import org.restlet.data.MediaType;
+import org.restlet.data.Tag;
+import org.restlet.representation.OutputRepresentation;
+import org.restlet.representation.Representation;
+import org.restlet.util.WrapperRepresentation;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Serialized responses kept off-heap and keyed by their entity tag (see {@link EntityTags}),
+ * such that identical requests are answered by copying bytes, without touching EDAL.
+ *
+ * Responses are serialized into a buffer first and stored before they are sent to the client,
+ * such that neither the cache nor identical requests waiting for the response (see {@link RequestCoalescer})
+ * depend on the speed of the client. Responses larger than {@link #MAX_ENTRY_SIZE} are streamed
+ * to the client once they outgrow the buffer and are not stored.
+ *
+ * If the client accepts gzip, the stored body is compressed in the background and then
+ * replaced by the compressed one, such that hits are served without on-the-fly compression
+ * by the encoder service. As the entity tag covers the accepted encodings, all hits of
+ * an entry accept gzip then. The compressed variant has different bytes, so it is served with
+ * its own strong tag, the request tag with {@link #GZIP_TAG_SUFFIX} appended, see {@link #matches(Tag, Tag)}.
+ *
+ */
+final class ResponseCache {
+
+	/**
+	 * Maximum size of all cached responses in MiB,
+	 * can be set with the system property edal.json.responseCacheSize. 0 disables the cache.
+	 */
+	static final int CACHE_SIZE = Integer.getInteger("edal.json.responseCacheSize", 256);
+
+	/**
+	 * Maximum size of a single cached response in MiB,
+	 * can be set with the system property edal.json.responseCacheMaxEntry.
+	 */
+	static final int MAX_ENTRY_SIZE = Integer.getInteger("edal.json.responseCacheMaxEntry", 16);
+
+	/**
+	 * Compression level (1-9) of cached responses,
+	 * can be set with the system property edal.json.gzipLevel.
+	 */
+	static final int GZIP_LEVEL = Integer.getInteger("edal.json.gzipLevel", 6);
+
+	/**
+	 * Number of threads compressing cached responses,
+	 * can be set with the system property edal.json.gzipThreads.
+	 */
+	static final int GZIP_THREADS = Integer.getInteger("edal.json.gzipThreads", 1);
+
+	/**
+	 * Appended to the entity tag of compressed variants.
+	 */
+	static final String GZIP_TAG_SUFFIX = "-gzip";
+
+	// like the encoder service, small responses are not worth compressing
+	private static final int MIN_COMPRESS_SIZE = 1000;
+
+	// separate from the request threads, such that cache fills don't delay responses
+	private static final ExecutorService GZIP_EXECUTOR = Executors.newFixedThreadPool(GZIP_THREADS, r -> {
+		Thread thread = new Thread(r, "response-gzip");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private static final Cache<String,Entry> cache = CacheBuilder.newBuilder()
+			.maximumWeight(CACHE_SIZE * 1024L * 1024L)
+			.weigher((String tag, Entry entry) -> entry.body.capacity())
+			.recordStats()
+			.build();
+
+	private ResponseCache() {
+	}
+
+	static class Entry {
+		final ByteBuffer body;
+		final MediaType mediaType;
+		final CharacterSet characterSet;
+		final List<Encoding> encodings;
+		final List<Header> headers;
+		final Set<Dimension> dimensions;
+		// appended to the request tag when served
+		final String tagSuffix;
+
+		Entry(ByteBuffer body, Representation entity, Response response) {
+			this.tagSuffix = "";
+			this.body = body;
+			this.mediaType = entity.getMediaType();
+			this.characterSet = entity.getCharacterSet();
+			this.encodings = new ArrayList<>(entity.getEncodings());
+			this.headers = new ArrayList<>(response.getHeaders());
+			this.dimensions = new HashSet<>(response.getDimensions());
+		}
+
+		/**
+		 * The gzip-compressed variant of an entry.
+		 */
+		Entry(ByteBuffer gzipped, Entry entry) {
+			this.tagSuffix = GZIP_TAG_SUFFIX;
+			this.body = gzipped;
+			this.mediaType = entry.mediaType;
+			this.characterSet = entry.characterSet;
+			this.encodings = new ArrayList<>(entry.encodings);
+			this.encodings.add(Encoding.GZIP);
+			this.headers = entry.headers;
+			this.dimensions = new HashSet<>(entry.dimensions);
+			this.dimensions.add(Dimension.ENCODING);
+		}
+
+		boolean isCompressible() {
+			return encodings.isEmpty() && body.capacity() >= MIN_COMPRESS_SIZE &&
+					!MediaType.IMAGE_ALL.includes(mediaType);
+		}
+	}
+
+	static boolean isEnabled() {
+		return CACHE_SIZE > 0;
+	}
+
+	/**
+	 * Compares the tag of a request with a tag given by the client, e.g. in If-None-Match.
+	 * The tag of the compressed variant matches as well, the decoded bytes are the same.
+	 */
+	static boolean matches(Tag tag, Tag clientTag) {
+		return tag.getName().equals(clientTag.getName()) ||
+				(tag.getName() + GZIP_TAG_SUFFIX).equals(clientTag.getName());
+	}
+
+	/**
+	 * Sets the cached entity and headers of the tag, if any.
+	 *
+	 * @return true if the response was found in the cache
+	 */
+	static boolean restore(Tag tag, Response response) {
+		Entry entry = cache.getIfPresent(tag.getName());
+		if (entry == null) {
+			return false;
+		}
+		restore(tag, entry, response);
+		return true;
+	}
+
+	/**
+	 * Sets the given captured entity and headers, see {@link #capture(Tag, Response, Consumer)}.
+	 */
+	static void restore(Tag tag, Entry entry, Response response) {
+		Representation r = new OutputRepresentation(entry.mediaType, entry.body.capacity()) {
+			@Override
+			public void write(OutputStream out) throws IOException {
+				// duplicate, as the buffer is shared between concurrent requests
+				Channels.newChannel(out).write(entry.body.duplicate());
+			}
+		};
+		r.setCharacterSet(entry.characterSet);
+		r.setEncodings(new ArrayList<>(entry.encodings));
+		r.setTag(new Tag(tag.getName() + entry.tagSuffix, false));
+		response.setEntity(r);
+		for (Header header : entry.headers) {
+			response.getHeaders().add(header);
+		}
+		response.getDimensions().addAll(entry.dimensions);
+	}
+
+	/**
+	 * Replaces the entity of the response with one that stores itself in the cache when written.
+	 *
+	 * @param compress whether a compressed variant should be stored as well
+	 * @param listener called exactly once, with the captured entry as soon as it is serialized and
+	 *                 before it is sent to the client, or with null if the response was too big,
+	 *                 failed to be serialized, or was released unwritten
+	 */
+	static void capture(Tag tag, Response response, boolean compress, Consumer<Entry> listener) {
+		Representation entity = response.getEntity();
+		if (entity.getSize() > MAX_ENTRY_SIZE * 1024L * 1024L) {
+			listener.accept(null);
+			return;
+		}
+		AtomicBoolean done = new AtomicBoolean();
+		response.setEntity(new WrapperRepresentation(entity) {
+			@Override
+			public void write(OutputStream out) throws IOException {
+				Entry entry = null;
+				try {
+					CapturingOutputStream capture = new CapturingOutputStream(out, MAX_ENTRY_SIZE * 1024 * 1024);
+					entity.write(capture);
+					if (capture.overflow) {
+						capture.flush();
+						return;
+					}
+					ByteBuffer body = ByteBuffer.allocateDirect(capture.size);
+					body.put(capture.buffer, 0, capture.size);
+					body.flip();
+					entry = new Entry(body, entity, response);
+					if (isEnabled()) {
+						cache.put(tag.getName(), entry);
+						if (compress && entry.isCompressible()) {
+							Entry identity = entry;
+							GZIP_EXECUTOR.submit(() -> compress(tag, identity));
+						}
+					}
+					if (done.compareAndSet(false, true)) {
+						listener.accept(entry);
+					}
+					out.write(capture.buffer, 0, capture.size);
+					out.flush();
+				} finally {
+					if (done.compareAndSet(false, true)) {
+						listener.accept(entry);
+					}
+				}
+			}
+
+			@Override
+			public void release() {
+				entity.release();
+				if (done.compareAndSet(false, true)) {
+					listener.accept(null);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Replaces a cached entry by its compressed variant, unless it was evicted or replaced meanwhile.
+	 */
+	private static void compress(Tag tag, Entry entry) {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(entry.body.capacity() / 4);
+			try (OutputStream gzip = newGzipStream(out)) {
+				Channels.newChannel(gzip).write(entry.body.duplicate());
+			}
+			ByteBuffer gzipped = ByteBuffer.allocateDirect(out.size());
+			gzipped.put(out.toByteArray());
+			gzipped.flip();
+			cache.asMap().replace(tag.getName(), entry, new Entry(gzipped, entry));
+		} catch (IOException e) {
+			System.err.println("Could not compress cached response " + tag.getName());
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return a gzip stream using {@link #GZIP_LEVEL}
+	 */
+	static GZIPOutputStream newGzipStream(OutputStream out) throws IOException {
+		return new GZIPOutputStream(out) {
+			{
+				def.setLevel(GZIP_LEVEL);
+			}
+		};
+	}
+
+	static CacheStats getStats() {
+		return cache.stats();
+	}
+
+	static long getSize() {
+		return cache.size();
+	}
+
+	/**
+	 * Buffers at most a given number of bytes without passing them through.
+	 * If more are written, the buffered bytes and everything after them are passed through instead.
+	 */
+	private static class CapturingOutputStream extends OutputStream {
+		private final OutputStream out;
+		private final int limit;
+		byte[] buffer = new byte[8192];
+		int size;
+		boolean overflow;
+
+		CapturingOutputStream(OutputStream out, int limit) {
+			this.out = out;
+			this.limit = limit;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (!overflow && (long) size + len > limit) {
+				overflow = true;
+				out.write(buffer, 0, size);
+				buffer = null;
+			}
+			if (overflow) {
+				out.write(b, off, len);
+				return;
+			}
+			if (size + len > buffer.length) {
+				byte[] bigger = new byte[Math.min(limit, Math.max(buffer.length * 2, size + len))];
+				System.arraycopy(buffer, 0, bigger, 0, size);
+				buffer = bigger;
+			}
+			System.arraycopy(b, off, buffer, size, len);
+			size += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			// nothing is sent before the buffer overflows
+			if (overflow) {
+				out.flush();
+			}
+		}
+	}
+}
@@ -11,6 +11,7 @@ public class SubsetConstraint extends Constraint {
 
 	private static final String PREFIX = "subset";
 	private static final String VerticalTarget = "verticalTarget";
+	private static final String Stride = "stride";
 	
 	/**
 	 * If given, it restricts the vertical axis to exactly the element
@@ -18,10 +19,25 @@ public class SubsetConstraint extends Constraint {
 	 */
 	public Optional<Double> verticalTarget;
 	
+	/**
+	 * Only every stride-th cell of the horizontal axes is included,
+	 * counted from the first cell of the full axes.
+	 */
+	public int stride;
+	
 	public SubsetConstraint(Form queryParams) {
 		super(queryParams, PREFIX);
 		String val = queryParams.getFirstValue(PREFIX + upper(VerticalTarget));
 		verticalTarget = val == null ? Optional.empty() : Optional.of(Double.parseDouble(val));
+		
+		val = queryParams.getFirstValue(PREFIX + upper(Stride));
+		stride = val == null ? 1 : Integer.parseInt(val);
+		if (stride < 1) {
+			throw new IllegalArgumentException(PREFIX + upper(Stride) + " must be a positive integer");
+		}
+		if (stride > 1) {
+			isConstrained = true;
+		}
 	}
 	
 	public Form getCanonicalQueryParams() {
@@ -53,6 +69,9 @@ public class SubsetConstraint extends Constraint {
 			String val = verticalTarget.get().toString();
 			form.add(PREFIX + upper(VerticalTarget), val);
 		}
+		if (stride > 1) {
+			form.add(PREFIX + upper(Stride), String.valueOf(stride));
+		}
 		if (params.isPresent()) {
 			List<String> p = new LinkedList<>(params.get());
 			Collections.sort(p);
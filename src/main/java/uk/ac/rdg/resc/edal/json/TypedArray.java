@@ -71,52 +71,63 @@ public class TypedArray extends ByteString {
 
 	static byte[] toByteArray(char[] arr, boolean asLittleEndian) {
 		ByteBuffer buffer = getBuffer(arr.length, 2, asLittleEndian);
-		for (char value : arr) {
-			buffer.putChar(value);
-		}
+		buffer.asCharBuffer().put(arr);
 		return buffer.array();
 	}
 
 	static byte[] toByteArray(short[] arr, boolean asLittleEndian) {
 		ByteBuffer buffer = getBuffer(arr.length, 2, asLittleEndian);
-		for (short value : arr) {
-			buffer.putShort(value);
-		}
+		buffer.asShortBuffer().put(arr);
 		return buffer.array();
 	}
 
 	static byte[] toByteArray(int[] arr, boolean asLittleEndian) {
 		ByteBuffer buffer = getBuffer(arr.length, 4, asLittleEndian);
-		for (int value : arr) {
-			buffer.putInt(value);
-		}
+		buffer.asIntBuffer().put(arr);
 		return buffer.array();
 	}
 
 	static byte[] toByteArray(long[] arr, boolean asLittleEndian) {
 		ByteBuffer buffer = getBuffer(arr.length, 8, asLittleEndian);
-		for (long value : arr) {
-			buffer.putLong(value);
-		}
+		buffer.asLongBuffer().put(arr);
 		return buffer.array();
 	}
 
 	static byte[] toByteArray(float[] arr, boolean asLittleEndian) {
 		ByteBuffer buffer = getBuffer(arr.length, 4, asLittleEndian);
-		for (float value : arr) {
-			buffer.putFloat(value);
-		}
+		buffer.asFloatBuffer().put(arr);
 		return buffer.array();
 	}
 
 	static byte[] toByteArray(double[] arr, boolean asLittleEndian) {
 		ByteBuffer buffer = getBuffer(arr.length, 8, asLittleEndian);
-		for (double value : arr) {
-			buffer.putDouble(value);
-		}
+		buffer.asDoubleBuffer().put(arr);
 		return buffer.array();
 	}
 
+	/**
+	 * Bulk-copies the first length elements of arr into the given buffer,
+	 * starting at its current position and using its byte order, and advances the position.
+	 * This allows to reuse pooled or direct buffers instead of allocating a new array.
+	 */
+	static ByteBuffer put(ByteBuffer buffer, int[] arr, int length) {
+		buffer.asIntBuffer().put(arr, 0, length);
+		buffer.position(buffer.position() + length * 4);
+		return buffer;
+	}
+
+	static ByteBuffer put(ByteBuffer buffer, float[] arr, int length) {
+		buffer.asFloatBuffer().put(arr, 0, length);
+		buffer.position(buffer.position() + length * 4);
+		return buffer;
+	}
+
+	static ByteBuffer put(ByteBuffer buffer, double[] arr, int length) {
+		buffer.asDoubleBuffer().put(arr, 0, length);
+		buffer.position(buffer.position() + length * 8);
+		return buffer;
+	}
+
 	static ByteBuffer getBuffer(int elementCount, int bytesPerElement, boolean asLittleEndian) {
 		ByteBuffer buffer = ByteBuffer.allocate(bytesPerElement * elementCount);
 		if (asLittleEndian) {
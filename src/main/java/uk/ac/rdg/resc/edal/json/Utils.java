@@ -1,19 +1,32 @@
 package uk.ac.rdg.resc.edal.json;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
+import org.apache.commons.io.Charsets;
+import org.apache.commons.io.IOUtils;
 import org.geotoolkit.metadata.iso.citation.Citations;
 import org.geotoolkit.referencing.IdentifiedObjects;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.opengis.util.FactoryException;
 
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
 import uk.ac.rdg.resc.edal.dataset.Dataset;
 import uk.ac.rdg.resc.edal.dataset.DatasetFactory;
 import uk.ac.rdg.resc.edal.dataset.cdm.CdmGridDatasetFactory;
@@ -22,8 +35,31 @@ import uk.ac.rdg.resc.edal.domain.Extent;
 import uk.ac.rdg.resc.edal.util.Extents;
 
 public final class Utils {
+	/**
+	 * Maximum number of opened datasets kept in memory,
+	 * can be set with the system property edal.json.datasetCacheSize.
+	 */
+	static final int DATASET_CACHE_SIZE = Integer.getInteger("edal.json.datasetCacheSize", 50);
+	
+	/**
+	 * Datasets which haven't been accessed for this many minutes are evicted,
+	 * can be set with the system property edal.json.datasetCacheExpiry.
+	 */
+	static final int DATASET_CACHE_EXPIRY = Integer.getInteger("edal.json.datasetCacheExpiry", 60);
+	
 	// TODO probably not the right place
-	private static Map<String,Dataset> datasetCache = new HashMap<>();
+	// concurrent requests for a dataset which is not cached yet wait for a single load
+	private static final LoadingCache<String,Dataset> datasetCache = CacheBuilder.newBuilder()
+			.maximumSize(DATASET_CACHE_SIZE)
+			.expireAfterAccess(DATASET_CACHE_EXPIRY, TimeUnit.MINUTES)
+			.removalListener(Utils::onDatasetRemoval)
+			.recordStats()
+			.build(CacheLoader.from(Utils::doGetDataset));
+	
+	// guarded by itself, number of requests and background tasks using a dataset id, see retainDataset
+	private static final Map<String,Integer> datasetUsers = new HashMap<>();
+	// guarded by datasetUsers, evicted datasets which are closed once their id is not used anymore
+	private static final Map<String,List<Dataset>> evictedDatasets = new HashMap<>();
 	
 	/**
 	 * Folder within classpath resources containing dataset files.
@@ -32,7 +68,90 @@ public final class Utils {
 	public static String DATASETS_FOLDER = "/datasets/";
 	
 	public static Dataset getDataset(String datasetId) {
-		return datasetCache.computeIfAbsent(datasetId, Utils::doGetDataset);
+		try (Metrics.Timer timer = Metrics.time(Metrics.Phase.METADATA)) {
+			return datasetCache.getUnchecked(datasetId);
+		} catch (UncheckedExecutionException e) {
+			Throwables.propagateIfPossible(e.getCause());
+			throw e;
+		}
+	}
+	
+	/**
+	 * Marks a dataset id as in use, such that datasets of that id evicted from the cache
+	 * meanwhile are not closed before {@link #releaseDataset(String)} was called as often.
+	 * This must be done by everything using a dataset beyond a single {@link #getDataset(String)} call,
+	 * that is, requests until their response is written and background tasks.
+	 */
+	static void retainDataset(String datasetId) {
+		synchronized (datasetUsers) {
+			datasetUsers.merge(datasetId, 1, Integer::sum);
+		}
+	}
+	
+	/**
+	 * Ends a use started with {@link #retainDataset(String)}, closing evicted datasets if it was the last one.
+	 */
+	static void releaseDataset(String datasetId) {
+		List<Dataset> evicted;
+		synchronized (datasetUsers) {
+			if (datasetUsers.merge(datasetId, -1, Integer::sum) > 0) {
+				return;
+			}
+			datasetUsers.remove(datasetId);
+			evicted = evictedDatasets.remove(datasetId);
+		}
+		if (evicted != null) {
+			evicted.forEach(Utils::closeDataset);
+		}
+	}
+	
+	private static void onDatasetRemoval(RemovalNotification<String,Dataset> notification) {
+		String datasetId = notification.getKey();
+		synchronized (datasetUsers) {
+			if (datasetUsers.containsKey(datasetId)) {
+				evictedDatasets.computeIfAbsent(datasetId, k -> new ArrayList<>()).add(notification.getValue());
+				return;
+			}
+		}
+		closeDataset(notification.getValue());
+	}
+	
+	/**
+	 * Releases the file handles of a dataset, if it holds any.
+	 */
+	private static void closeDataset(Dataset dataset) {
+		if (!(dataset instanceof AutoCloseable)) {
+			return;
+		}
+		try {
+			((AutoCloseable) dataset).close();
+		} catch (Exception e) {
+			System.err.println("Could not close evicted dataset " + dataset.getId());
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Lists the ids of all datasets in {@link #DATASETS_FOLDER}.
+	 */
+	public static List<String> getDatasetIds() throws IOException {
+		List<String> datasetIds = new ArrayList<>();
+		for (String datasetId : IOUtils.readLines(Utils.class.getClassLoader()
+		        .getResourceAsStream(DATASETS_FOLDER.substring(1)), Charsets.UTF_8)) {
+			URL resource = Utils.class.getResource(DATASETS_FOLDER + datasetId);
+			if (new File(resource.getFile()).isDirectory()) {
+				continue;
+			}
+			datasetIds.add(datasetId);
+		}
+		return datasetIds;
+	}
+	
+	/**
+	 * Hit, miss and load time statistics of the dataset cache.
+	 */
+	public static CacheStats getDatasetCacheStats() {
+		return datasetCache.stats();
 	}
 	
 	private static Dataset doGetDataset(String datasetId) {
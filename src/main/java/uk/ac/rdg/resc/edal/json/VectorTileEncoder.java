@@ -0,0 +1,151 @@
+package uk.ac.rdg.resc.edal.json;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes a single-layer Mapbox Vector Tile (version 2) with point and polygon features.
+ *
+ * The protobuf wire format is written directly, see
+ * https://github.com/mapbox/vector-tile-spec/tree/master/2.1.
+ * Coordinates are integers in tile space, [0,{@link #EXTENT}) with y pointing down.
+ * Property values are strings or non-negative integers.
+ *
+ */
+final class VectorTileEncoder {
+
+	static final int EXTENT = 4096;
+
+	private static final int GEOM_POINT = 1;
+	private static final int GEOM_POLYGON = 3;
+
+	private static final int CMD_MOVE_TO = 1;
+	private static final int CMD_LINE_TO = 2;
+	private static final int CMD_CLOSE_PATH = 7;
+
+	private static final int WIRE_VARINT = 0;
+	private static final int WIRE_LENGTH_DELIMITED = 2;
+
+	private final String layerName;
+	private final List<byte[]> features = new ArrayList<>();
+	private final Map<String,Integer> keys = new LinkedHashMap<>();
+	private final Map<Object,Integer> values = new LinkedHashMap<>();
+
+	VectorTileEncoder(String layerName) {
+		this.layerName = layerName;
+	}
+
+	void addPoint(long id, int x, int y, Map<String,?> props) {
+		int[] geometry = {
+			command(CMD_MOVE_TO, 1), zigZag(x), zigZag(y)
+		};
+		addFeature(id, GEOM_POINT, geometry, props);
+	}
+
+	/**
+	 * Adds a rectangle, in tile space.
+	 */
+	void addBox(long id, int minX, int minY, int maxX, int maxY, Map<String,?> props) {
+		// exterior rings are clockwise in tile space (y down)
+		int[] geometry = {
+			command(CMD_MOVE_TO, 1), zigZag(minX), zigZag(minY),
+			command(CMD_LINE_TO, 3), zigZag(maxX - minX), zigZag(0),
+			                         zigZag(0), zigZag(maxY - minY),
+			                         zigZag(minX - maxX), zigZag(0),
+			command(CMD_CLOSE_PATH, 1)
+		};
+		addFeature(id, GEOM_POLYGON, geometry, props);
+	}
+
+	private void addFeature(long id, int type, int[] geometry, Map<String,?> props) {
+		int[] tags = new int[props.size() * 2];
+		int i = 0;
+		for (Map.Entry<String,?> prop : props.entrySet()) {
+			tags[i++] = keys.computeIfAbsent(prop.getKey(), k -> keys.size());
+			tags[i++] = values.computeIfAbsent(prop.getValue(), v -> values.size());
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeTag(out, 1, WIRE_VARINT);
+		writeVarint(out, id);
+		writePacked(out, 2, tags);
+		writeTag(out, 3, WIRE_VARINT);
+		writeVarint(out, type);
+		writePacked(out, 4, geometry);
+		features.add(out.toByteArray());
+	}
+
+	byte[] encode() {
+		ByteArrayOutputStream layer = new ByteArrayOutputStream();
+		writeTag(layer, 15, WIRE_VARINT);
+		writeVarint(layer, 2);
+		writeBytes(layer, 1, layerName.getBytes(StandardCharsets.UTF_8));
+		for (byte[] feature : features) {
+			writeBytes(layer, 2, feature);
+		}
+		for (String key : keys.keySet()) {
+			writeBytes(layer, 3, key.getBytes(StandardCharsets.UTF_8));
+		}
+		for (Object value : values.keySet()) {
+			writeBytes(layer, 4, encodeValue(value));
+		}
+		writeTag(layer, 5, WIRE_VARINT);
+		writeVarint(layer, EXTENT);
+
+		ByteArrayOutputStream tile = new ByteArrayOutputStream();
+		writeBytes(tile, 3, layer.toByteArray());
+		return tile.toByteArray();
+	}
+
+	private static byte[] encodeValue(Object value) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if (value instanceof String) {
+			writeBytes(out, 1, ((String) value).getBytes(StandardCharsets.UTF_8));
+		} else if (value instanceof Integer || value instanceof Long) {
+			// uint_value
+			writeTag(out, 5, WIRE_VARINT);
+			writeVarint(out, ((Number) value).longValue());
+		} else {
+			throw new IllegalArgumentException("Unsupported property value: " + value);
+		}
+		return out.toByteArray();
+	}
+
+	private static int command(int id, int count) {
+		return (id & 0x7) | (count << 3);
+	}
+
+	private static int zigZag(int n) {
+		return (n << 1) ^ (n >> 31);
+	}
+
+	private static void writeTag(ByteArrayOutputStream out, int field, int wireType) {
+		writeVarint(out, (field << 3) | wireType);
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static void writeBytes(ByteArrayOutputStream out, int field, byte[] bytes) {
+		writeTag(out, field, WIRE_LENGTH_DELIMITED);
+		writeVarint(out, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	private static void writePacked(ByteArrayOutputStream out, int field, int[] vals) {
+		ByteArrayOutputStream packed = new ByteArrayOutputStream();
+		for (int val : vals) {
+			// all packed values are unsigned (or already zigzag-encoded)
+			writeVarint(packed, val & 0xFFFFFFFFL);
+		}
+		writeBytes(out, field, packed.toByteArray());
+	}
+}